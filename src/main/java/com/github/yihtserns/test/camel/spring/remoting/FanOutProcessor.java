@@ -0,0 +1,176 @@
+/*
+ * Copyright 2015 yihtserns.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.yihtserns.test.camel.spring.remoting;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import org.apache.camel.Exchange;
+import org.apache.camel.Processor;
+import org.apache.camel.support.ServiceSupport;
+import org.apache.camel.util.ServiceHelper;
+
+/**
+ * Processes each item of a {@link FanOut} body as its own exchange through the wrapped processor, concurrently, and
+ * replaces the body with a list of the per-item results in the original order. Exchanges of methods without
+ * {@link FanOut} are passed to the wrapped processor as they are.
+ * <p>
+ * Items are shared between the calling thread and up to {@code parallelism - 1} threads of a pool of
+ * {@code parallelism} threads, so a call always makes progress even when the pool is busy with other calls, and only
+ * waits for its own items: helpers still queued once the calling thread has run out of items are cancelled.
+ *
+ * @author yihtserns
+ */
+public class FanOutProcessor extends ServiceSupport implements Processor {
+
+    private final Processor processor;
+    private final int parallelism;
+    private FailurePolicy failurePolicy = FailurePolicy.FAIL_FAST;
+    private ExecutorService executorService;
+
+    public FanOutProcessor(Processor processor, int parallelism) {
+        if (parallelism < 1) {
+            throw new IllegalArgumentException("Parallelism must be at least 1, but was " + parallelism);
+        }
+        this.processor = processor;
+        this.parallelism = parallelism;
+    }
+
+    public void setFailurePolicy(FailurePolicy failurePolicy) {
+        this.failurePolicy = failurePolicy;
+    }
+
+    @Override
+    public void process(Exchange exchange) throws Exception {
+        if (!exchange.getProperty(SpringRemotingHttpBinding.FAN_OUT, false, Boolean.class)) {
+            processor.process(exchange);
+            return;
+        }
+
+        Collection<?> items = exchange.getIn().getMandatoryBody(Collection.class);
+        final Exchange[] itemExchanges = new Exchange[items.size()];
+        int itemIndex = 0;
+        for (Object item : items) {
+            Exchange itemExchange = exchange.copy();
+            itemExchange.removeProperty(SpringRemotingHttpBinding.FAN_OUT);
+            itemExchange.getIn().setBody(item);
+            itemExchanges[itemIndex++] = itemExchange;
+        }
+
+        final AtomicInteger nextIndex = new AtomicInteger();
+        final AtomicReference<Exception> firstException = new AtomicReference<Exception>();
+        final CountDownLatch remainingItems = new CountDownLatch(itemExchanges.length);
+        Runnable worker = new Runnable() {
+
+            @Override
+            public void run() {
+                int index;
+                while ((index = nextIndex.getAndIncrement()) < itemExchanges.length) {
+                    try {
+                        if (failurePolicy != FailurePolicy.FAIL_FAST || firstException.get() == null) {
+                            processItem(itemExchanges[index], firstException);
+                        }
+                    } finally {
+                        remainingItems.countDown();
+                    }
+                }
+            }
+        };
+
+        int helperCount = Math.min(parallelism, itemExchanges.length) - 1;
+        List<Future<?>> helpers = new ArrayList<Future<?>>(Math.max(helperCount, 0));
+        for (int i = 0; i < helperCount; i++) {
+            helpers.add(executorService.submit(worker));
+        }
+        worker.run();
+        for (Future<?> helper : helpers) {
+            helper.cancel(false);
+        }
+        remainingItems.await();
+
+        if (failurePolicy == FailurePolicy.FAIL_FAST && firstException.get() != null) {
+            exchange.setException(firstException.get());
+            return;
+        }
+
+        Object[] results = new Object[itemExchanges.length];
+        for (int i = 0; i < itemExchanges.length; i++) {
+            Exchange itemExchange = itemExchanges[i];
+            if (itemExchange.getException() == null) {
+                results[i] = (itemExchange.hasOut() ? itemExchange.getOut() : itemExchange.getIn()).getBody();
+            }
+        }
+        exchange.getIn().setBody(new ArrayList<Object>(Arrays.asList(results)));
+    }
+
+    private void processItem(Exchange itemExchange, AtomicReference<Exception> firstException) {
+        try {
+            processor.process(itemExchange);
+        } catch (Throwable t) {
+            itemExchange.setException(t);
+        }
+        if (itemExchange.getException() != null) {
+            firstException.compareAndSet(null, itemExchange.getException());
+        }
+    }
+
+    @Override
+    protected void doStart() throws Exception {
+        ServiceHelper.startService(processor);
+
+        executorService = Executors.newFixedThreadPool(parallelism, new ThreadFactory() {
+
+            private final AtomicInteger threadNumber = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "FanOutProcessor-" + threadNumber.incrementAndGet());
+                thread.setDaemon(true);
+
+                return thread;
+            }
+        });
+    }
+
+    @Override
+    protected void doStop() throws Exception {
+        executorService.shutdown();
+        ServiceHelper.stopService(processor);
+    }
+
+    /**
+     * What to do when processing one of the items fails.
+     */
+    public enum FailurePolicy {
+
+        /**
+         * Stop processing items not yet started, and fail the whole exchange with the first exception.
+         */
+        FAIL_FAST,
+        /**
+         * Process every item, and put {@code null} in the result list in place of each failed item.
+         */
+        NULL_ON_FAILURE
+    }
+}
@@ -0,0 +1,329 @@
+/*
+ * Copyright 2015 yihtserns.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.yihtserns.test.camel.spring.remoting;
+
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import org.springframework.beans.factory.BeanClassLoaderAware;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.remoting.httpinvoker.HttpInvokerClientConfiguration;
+import org.springframework.remoting.httpinvoker.HttpInvokerRequestExecutor;
+import org.springframework.remoting.support.RemoteInvocation;
+import org.springframework.remoting.support.RemoteInvocationResult;
+
+/**
+ * Sends a second copy of an invocation of an {@link Idempotent} method if the first has not been answered within the
+ * {@link #setHedgeDelayPercentile(double) n-th percentile} of recently observed latencies, and returns whichever answer
+ * arrives first. Meant to wrap {@link LoadBalancingHttpInvokerRequestExecutor}: with
+ * {@link LoadBalancingHttpInvokerRequestExecutor.Strategy#LEAST_OUTSTANDING_REQUESTS} the second copy goes to a
+ * different endpoint, since the first one is still outstanding there, but with
+ * {@link LoadBalancingHttpInvokerRequestExecutor.Strategy#LATENCY_WEIGHTED} it may go back to the same slow endpoint.
+ * <p>
+ * Extra load is bounded by the {@link #setHedgeBudget(double) hedge budget}: every idempotent invocation earns that
+ * fraction of a hedge, and a hedge is only sent if a whole one has been earned. No hedge is sent until enough latencies
+ * have been observed to estimate the percentile.
+ * <p>
+ * Once hedging starts, the first copy of every idempotent invocation runs on a pool thread while the caller waits, so
+ * that the caller can take whichever copy answers first. The pool is bounded: when it has no thread to spare, the
+ * invocation runs on the calling thread without a hedge.
+ *
+ * @author yihtserns
+ */
+public class HedgingHttpInvokerRequestExecutor implements HttpInvokerRequestExecutor, BeanClassLoaderAware,
+        DisposableBean {
+
+    private static final long MILLI_HEDGES_PER_HEDGE = 1000;
+    private static final long MAX_SAVED_MILLI_HEDGES = 10 * MILLI_HEDGES_PER_HEDGE;
+    private final HttpInvokerRequestExecutor delegate;
+    private final Map<String, List<Class<?>[]>> methodName2IdempotentParameterTypes
+            = new HashMap<String, List<Class<?>[]>>();
+    private final LatencyWindow latencyWindow = new LatencyWindow();
+    private final AtomicLong savedMilliHedges = new AtomicLong();
+    private ExecutorService executorService = null;
+    private boolean ownsExecutorService = false;
+    private int maxThreads = 64;
+    private double hedgeDelayPercentile = 95;
+    private double hedgeBudget = 0.1;
+
+    /**
+     * @param serviceInterface whose {@link Idempotent} methods may be hedged
+     * @param delegate used to send every copy of an invocation
+     */
+    public HedgingHttpInvokerRequestExecutor(Class<?> serviceInterface, HttpInvokerRequestExecutor delegate) {
+        if (!serviceInterface.isInterface()) {
+            throw new IllegalArgumentException("Class must be an interface, but was " + serviceInterface);
+        }
+        this.delegate = delegate;
+
+        for (Method method : serviceInterface.getMethods()) {
+            if (!method.isAnnotationPresent(Idempotent.class)) {
+                continue;
+            }
+            List<Class<?>[]> idempotentParameterTypes = methodName2IdempotentParameterTypes.get(method.getName());
+            if (idempotentParameterTypes == null) {
+                idempotentParameterTypes = new ArrayList<Class<?>[]>();
+                methodName2IdempotentParameterTypes.put(method.getName(), idempotentParameterTypes);
+            }
+            idempotentParameterTypes.add(method.getParameterTypes());
+        }
+    }
+
+    /**
+     * @param executorService runs both copies of hedged invocations, defaults to an internal pool of up to
+     * {@link #setMaxThreads(int) max threads}; an invocation it rejects runs on the calling thread without a hedge
+     */
+    public void setExecutorService(ExecutorService executorService) {
+        this.executorService = executorService;
+    }
+
+    /**
+     * @param maxThreads size limit of the internal pool, defaults to 64; ignored when
+     * {@link #setExecutorService(ExecutorService) an executor service is given}
+     */
+    public void setMaxThreads(int maxThreads) {
+        if (maxThreads < 1) {
+            throw new IllegalArgumentException("Max threads must be at least 1, but was " + maxThreads);
+        }
+        this.maxThreads = maxThreads;
+    }
+
+    /**
+     * @param hedgeDelayPercentile percentile (0-100) of recent latencies to wait before hedging, defaults to 95
+     */
+    public void setHedgeDelayPercentile(double hedgeDelayPercentile) {
+        if (hedgeDelayPercentile < 0 || hedgeDelayPercentile > 100) {
+            throw new IllegalArgumentException("Percentile must be between 0 and 100, but was " + hedgeDelayPercentile);
+        }
+        this.hedgeDelayPercentile = hedgeDelayPercentile;
+    }
+
+    /**
+     * @param hedgeBudget maximum hedges per idempotent invocation, defaults to 0.1 (10% extra load)
+     */
+    public void setHedgeBudget(double hedgeBudget) {
+        if (hedgeBudget < 0) {
+            throw new IllegalArgumentException("Hedge budget must not be negative, but was " + hedgeBudget);
+        }
+        this.hedgeBudget = hedgeBudget;
+    }
+
+    @Override
+    public void setBeanClassLoader(ClassLoader beanClassLoader) {
+        if (delegate instanceof BeanClassLoaderAware) {
+            ((BeanClassLoaderAware) delegate).setBeanClassLoader(beanClassLoader);
+        }
+    }
+
+    @Override
+    public synchronized void destroy() {
+        if (ownsExecutorService) {
+            executorService.shutdownNow();
+        }
+    }
+
+    @Override
+    public RemoteInvocationResult executeRequest(
+            HttpInvokerClientConfiguration config,
+            RemoteInvocation invocation) throws Exception {
+        if (!isIdempotent(invocation)) {
+            return delegate.executeRequest(config, invocation);
+        }
+        earnHedge();
+
+        long hedgeDelayNanos = latencyWindow.percentile(hedgeDelayPercentile);
+        if (hedgeDelayNanos < 0) {
+            return execute(config, invocation).call();
+        }
+
+        CompletionService<RemoteInvocationResult> completionService
+                = new ExecutorCompletionService<RemoteInvocationResult>(getExecutorService());
+        List<Future<RemoteInvocationResult>> attempts = new ArrayList<Future<RemoteInvocationResult>>(2);
+        try {
+            try {
+                attempts.add(completionService.submit(execute(config, invocation)));
+            } catch (RejectedExecutionException ex) {
+                return execute(config, invocation).call();
+            }
+
+            Future<RemoteInvocationResult> completed = completionService.poll(hedgeDelayNanos, TimeUnit.NANOSECONDS);
+            if (completed == null && spendHedge()) {
+                try {
+                    attempts.add(completionService.submit(execute(config, invocation)));
+                } catch (RejectedExecutionException ex) {
+                    refundHedge();
+                }
+            }
+            if (completed == null) {
+                completed = completionService.take();
+            }
+
+            try {
+                return completed.get();
+            } catch (ExecutionException ex) {
+                if (attempts.size() == 1) {
+                    throw ex;
+                }
+                return completionService.take().get();
+            }
+        } catch (ExecutionException ex) {
+            Throwable cause = ex.getCause();
+            if (cause instanceof Exception) {
+                throw (Exception) cause;
+            }
+            throw (Error) cause;
+        } finally {
+            for (Future<RemoteInvocationResult> attempt : attempts) {
+                attempt.cancel(true);
+            }
+        }
+    }
+
+    private Callable<RemoteInvocationResult> execute(
+            final HttpInvokerClientConfiguration config,
+            final RemoteInvocation invocation) {
+        return new Callable<RemoteInvocationResult>() {
+
+            @Override
+            public RemoteInvocationResult call() throws Exception {
+                long start = System.nanoTime();
+                RemoteInvocationResult result = delegate.executeRequest(config, invocation);
+                latencyWindow.record(System.nanoTime() - start);
+
+                return result;
+            }
+        };
+    }
+
+    private boolean isIdempotent(RemoteInvocation invocation) {
+        List<Class<?>[]> idempotentParameterTypes = methodName2IdempotentParameterTypes.get(invocation.getMethodName());
+        if (idempotentParameterTypes == null) {
+            return false;
+        }
+        for (Class<?>[] parameterTypes : idempotentParameterTypes) {
+            if (Arrays.equals(parameterTypes, invocation.getParameterTypes())) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void earnHedge() {
+        long earned = (long) (hedgeBudget * MILLI_HEDGES_PER_HEDGE);
+        while (true) {
+            long saved = savedMilliHedges.get();
+            long updated = Math.min(saved + earned, MAX_SAVED_MILLI_HEDGES);
+            if (saved == updated || savedMilliHedges.compareAndSet(saved, updated)) {
+                return;
+            }
+        }
+    }
+
+    private boolean spendHedge() {
+        while (true) {
+            long saved = savedMilliHedges.get();
+            if (saved < MILLI_HEDGES_PER_HEDGE) {
+                return false;
+            }
+            if (savedMilliHedges.compareAndSet(saved, saved - MILLI_HEDGES_PER_HEDGE)) {
+                return true;
+            }
+        }
+    }
+
+    private void refundHedge() {
+        savedMilliHedges.addAndGet(MILLI_HEDGES_PER_HEDGE);
+    }
+
+    private synchronized ExecutorService getExecutorService() {
+        if (executorService == null) {
+            executorService = new ThreadPoolExecutor(
+                    0, maxThreads,
+                    60, TimeUnit.SECONDS,
+                    new SynchronousQueue<Runnable>(),
+                    new ThreadFactory() {
+
+                        private final AtomicInteger threadNumber = new AtomicInteger();
+
+                        @Override
+                        public Thread newThread(Runnable runnable) {
+                            Thread thread = new Thread(runnable, "HedgingHttpInvoker-" + threadNumber.incrementAndGet());
+                            thread.setDaemon(true);
+
+                            return thread;
+                        }
+                    });
+            ownsExecutorService = true;
+        }
+        return executorService;
+    }
+
+    /**
+     * Keeps the most recent latencies and periodically re-computes the requested percentile from them.
+     */
+    static final class LatencyWindow {
+
+        private static final int SIZE = 1024;
+        private static final int MIN_SAMPLES = 20;
+        private static final int RECOMPUTE_INTERVAL = 16;
+        private final long[] latencies = new long[SIZE];
+        private int count = 0;
+        private int sinceRecompute = RECOMPUTE_INTERVAL;
+        private double percentile = -1;
+        private long percentileNanos = -1;
+
+        synchronized void record(long latencyNanos) {
+            latencies[count % SIZE] = latencyNanos;
+            count++;
+            sinceRecompute++;
+        }
+
+        /**
+         * @return -1 if there are not enough samples yet
+         */
+        synchronized long percentile(double percentile) {
+            if (count < MIN_SAMPLES) {
+                return -1;
+            }
+            if (sinceRecompute >= RECOMPUTE_INTERVAL || percentile != this.percentile) {
+                long[] sorted = Arrays.copyOf(latencies, Math.min(count, SIZE));
+                Arrays.sort(sorted);
+
+                int index = (int) Math.ceil(percentile / 100 * sorted.length) - 1;
+                this.percentileNanos = sorted[Math.max(index, 0)];
+                this.percentile = percentile;
+                this.sinceRecompute = 0;
+            }
+            return percentileNanos;
+        }
+    }
+}
@@ -0,0 +1,178 @@
+/*
+ * Copyright 2015 yihtserns.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.yihtserns.test.camel.spring.remoting;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.net.URI;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import org.apache.camel.CamelContext;
+import org.apache.camel.Consumer;
+import org.apache.camel.Exchange;
+import org.apache.camel.ExchangePattern;
+import org.apache.camel.Message;
+import org.apache.camel.Route;
+import org.apache.camel.impl.DefaultConsumer;
+import org.apache.camel.http.common.HttpCommonEndpoint;
+import org.springframework.beans.factory.BeanClassLoaderAware;
+import org.springframework.core.ConfigurableObjectInputStream;
+import org.springframework.remoting.RemoteConnectFailureException;
+import org.springframework.remoting.httpinvoker.HttpInvokerClientConfiguration;
+import org.springframework.remoting.httpinvoker.HttpInvokerRequestExecutor;
+import org.springframework.remoting.support.RemoteInvocation;
+import org.springframework.remoting.support.RemoteInvocationResult;
+import org.springframework.util.ClassUtils;
+
+/**
+ * Hands {@link RemoteInvocation}s straight to the route in the same JVM whose HTTP endpoint matches the service URL and
+ * uses {@link SpringRemotingHttpBinding}, skipping HTTP and Java serialization. Routes are matched by port and path.
+ * <p>
+ * Arguments and results are passed by reference unless {@link #setDefensiveCopy(boolean) defensive copy} is enabled.
+ *
+ * @author yihtserns
+ */
+public class InProcessHttpInvokerRequestExecutor implements HttpInvokerRequestExecutor, BeanClassLoaderAware {
+
+    private final CamelContext camelContext;
+    private final ConcurrentMap<String, Route> serviceUrl2Route = new ConcurrentHashMap<String, Route>();
+    private boolean defensiveCopy = false;
+    private ClassLoader beanClassLoader = ClassUtils.getDefaultClassLoader();
+
+    public InProcessHttpInvokerRequestExecutor(CamelContext camelContext) {
+        this.camelContext = camelContext;
+    }
+
+    /**
+     * @param defensiveCopy {@code true} to pass copies of the arguments to the route and of the result back to the
+     * caller, the same by-value semantics as over HTTP
+     */
+    public void setDefensiveCopy(boolean defensiveCopy) {
+        this.defensiveCopy = defensiveCopy;
+    }
+
+    @Override
+    public void setBeanClassLoader(ClassLoader beanClassLoader) {
+        this.beanClassLoader = beanClassLoader;
+    }
+
+    @Override
+    public RemoteInvocationResult executeRequest(
+            HttpInvokerClientConfiguration config,
+            RemoteInvocation invocation) throws Exception {
+        Route route = getRoute(config.getServiceUrl());
+        HttpCommonEndpoint endpoint = (HttpCommonEndpoint) route.getEndpoint();
+        SpringRemotingHttpBinding binding = (SpringRemotingHttpBinding) endpoint.getBinding();
+
+        Consumer consumer = route.getConsumer();
+        if (!(consumer instanceof DefaultConsumer) || !camelContext.getRouteStatus(route.getId()).isStarted()) {
+            throw new RemoteConnectFailureException("Route for " + config.getServiceUrl() + " is not started", null);
+        }
+        DefaultConsumer defaultConsumer = (DefaultConsumer) consumer;
+
+        if (defensiveCopy) {
+            invocation = copy(invocation);
+        }
+
+        Exchange exchange = endpoint.createExchange(ExchangePattern.InOut);
+        exchange.getIn().setBody(invocation);
+        binding.unwrapRemoteInvocation(exchange.getIn());
+
+        defaultConsumer.createUoW(exchange);
+        try {
+            defaultConsumer.getProcessor().process(exchange);
+        } finally {
+            defaultConsumer.doneUoW(exchange);
+        }
+        if (exchange.getException() != null) {
+            throw exchange.getException();
+        }
+
+        Message message = exchange.hasOut() ? exchange.getOut() : exchange.getIn();
+        binding.wrapInRemoteInvocationResult(message);
+        RemoteInvocationResult result = (RemoteInvocationResult) message.getBody();
+
+        return defensiveCopy ? copy(result) : result;
+    }
+
+    private Route getRoute(String serviceUrl) {
+        Route route = serviceUrl2Route.get(serviceUrl);
+        if (route != null && camelContext.getRoute(route.getId()) == route) {
+            return route;
+        }
+
+        URI serviceUri = URI.create(serviceUrl);
+        for (Route candidate : camelContext.getRoutes()) {
+            if (!(candidate.getEndpoint() instanceof HttpCommonEndpoint)) {
+                continue;
+            }
+            HttpCommonEndpoint endpoint = (HttpCommonEndpoint) candidate.getEndpoint();
+            if (!(endpoint.getBinding() instanceof SpringRemotingHttpBinding)) {
+                continue;
+            }
+            URI endpointUri = endpoint.getHttpUri();
+            if (portOf(endpointUri) == portOf(serviceUri) && pathOf(endpointUri).equals(pathOf(serviceUri))) {
+                serviceUrl2Route.put(serviceUrl, candidate);
+                return candidate;
+            }
+        }
+
+        String msg = String.format(
+                "No route in %s consumes from '%s' using %s",
+                camelContext.getName(),
+                serviceUrl,
+                SpringRemotingHttpBinding.class.getSimpleName());
+        throw new RemoteConnectFailureException(msg, null);
+    }
+
+    private static int portOf(URI uri) {
+        if (uri.getPort() != -1) {
+            return uri.getPort();
+        }
+        return "https".equalsIgnoreCase(uri.getScheme()) ? 443 : 80;
+    }
+
+    private static String pathOf(URI uri) {
+        String path = uri.getPath();
+        if (path == null || path.length() == 0) {
+            return "/";
+        }
+        return path;
+    }
+
+    @SuppressWarnings("unchecked")
+    private <T> T copy(T object) throws IOException, ClassNotFoundException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        ObjectOutputStream out = new ObjectOutputStream(bytes);
+        try {
+            out.writeObject(object);
+        } finally {
+            out.close();
+        }
+
+        ObjectInputStream in = new ConfigurableObjectInputStream(
+                new ByteArrayInputStream(bytes.toByteArray()),
+                beanClassLoader);
+        try {
+            return (T) in.readObject();
+        } finally {
+            in.close();
+        }
+    }
+}
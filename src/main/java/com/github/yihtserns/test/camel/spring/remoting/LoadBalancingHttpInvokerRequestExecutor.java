@@ -0,0 +1,379 @@
+/*
+ * Copyright 2015 yihtserns.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.yihtserns.test.camel.spring.remoting;
+
+import java.io.IOException;
+import java.net.ConnectException;
+import java.net.HttpURLConnection;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.springframework.beans.factory.BeanClassLoaderAware;
+import org.springframework.remoting.RemoteConnectFailureException;
+import org.springframework.remoting.httpinvoker.HttpInvokerClientConfiguration;
+import org.springframework.remoting.httpinvoker.HttpInvokerRequestExecutor;
+import org.springframework.remoting.httpinvoker.SimpleHttpInvokerRequestExecutor;
+import org.springframework.remoting.support.RemoteInvocation;
+import org.springframework.remoting.support.RemoteInvocationResult;
+
+/**
+ * Spreads invocations across several service URLs, so that multiple Camel routes using
+ * {@link SpringRemotingHttpBinding} can be called without a load balancer in between. The service URL configured on
+ * the proxy itself is ignored.
+ * <p>
+ * An endpoint that {@link #setConsecutiveFailuresToEject(int) keeps failing} to be reached is ejected for
+ * {@link #setEjectionMillis(long) a while}, doubling for every further consecutive failure up to
+ * {@link #setMaxEjectionMillis(long) a limit}. Once that period is over, the next invocation routed to it acts as the
+ * probe: success puts it back into rotation, failure ejects it again. Only connection and transport failures count,
+ * along with 404 (no consumer), 502, 503 and 504 responses; an error response from the route itself or an invocation
+ * that could not be serialized says nothing about the endpoint. Invocations that could not even connect are retried
+ * once on another endpoint, since the server never saw them.
+ *
+ * @author yihtserns
+ */
+public class LoadBalancingHttpInvokerRequestExecutor implements HttpInvokerRequestExecutor, BeanClassLoaderAware {
+
+    private final List<Endpoint> endpoints = new ArrayList<Endpoint>();
+    private final AtomicInteger nextStartIndex = new AtomicInteger();
+    private HttpInvokerRequestExecutor delegate = new StatusReportingHttpInvokerRequestExecutor();
+    private Strategy strategy = Strategy.LEAST_OUTSTANDING_REQUESTS;
+    private int consecutiveFailuresToEject = 3;
+    private long ejectionMillis = 1000;
+    private long maxEjectionMillis = 30000;
+
+    public LoadBalancingHttpInvokerRequestExecutor(List<String> serviceUrls) {
+        if (serviceUrls.isEmpty()) {
+            throw new IllegalArgumentException("At least one service URL is required");
+        }
+        for (String serviceUrl : serviceUrls) {
+            endpoints.add(new Endpoint(serviceUrl));
+        }
+    }
+
+    /**
+     * @param delegate used to call the chosen endpoint, defaults to {@link StatusReportingHttpInvokerRequestExecutor};
+     * unsuccessful responses only count towards ejection if it throws {@link UnsuccessfulResponseException}
+     */
+    public void setDelegate(HttpInvokerRequestExecutor delegate) {
+        this.delegate = delegate;
+    }
+
+    public void setStrategy(Strategy strategy) {
+        this.strategy = strategy;
+    }
+
+    /**
+     * @param consecutiveFailuresToEject number of endpoint failures in a row that takes an endpoint out of rotation
+     */
+    public void setConsecutiveFailuresToEject(int consecutiveFailuresToEject) {
+        if (consecutiveFailuresToEject < 1) {
+            throw new IllegalArgumentException(
+                    "Consecutive failures to eject must be at least 1, but was " + consecutiveFailuresToEject);
+        }
+        this.consecutiveFailuresToEject = consecutiveFailuresToEject;
+    }
+
+    /**
+     * @param ejectionMillis how long an endpoint is taken out of rotation when it is first ejected
+     */
+    public void setEjectionMillis(long ejectionMillis) {
+        this.ejectionMillis = ejectionMillis;
+    }
+
+    public void setMaxEjectionMillis(long maxEjectionMillis) {
+        this.maxEjectionMillis = maxEjectionMillis;
+    }
+
+    @Override
+    public void setBeanClassLoader(ClassLoader beanClassLoader) {
+        if (delegate instanceof BeanClassLoaderAware) {
+            ((BeanClassLoaderAware) delegate).setBeanClassLoader(beanClassLoader);
+        }
+    }
+
+    @Override
+    public RemoteInvocationResult executeRequest(
+            HttpInvokerClientConfiguration config,
+            RemoteInvocation invocation) throws Exception {
+        Endpoint endpoint = choose(null);
+        try {
+            return execute(endpoint, config, invocation);
+        } catch (ConnectException ex) {
+            Endpoint otherEndpoint = choose(endpoint);
+            if (otherEndpoint == endpoint) {
+                throw ex;
+            }
+            return execute(otherEndpoint, config, invocation);
+        }
+    }
+
+    private RemoteInvocationResult execute(
+            Endpoint endpoint,
+            final HttpInvokerClientConfiguration config,
+            RemoteInvocation invocation) throws Exception {
+        final String serviceUrl = endpoint.serviceUrl;
+        HttpInvokerClientConfiguration endpointConfig = new HttpInvokerClientConfiguration() {
+
+            @Override
+            public String getServiceUrl() {
+                return serviceUrl;
+            }
+
+            @Override
+            public String getCodebaseUrl() {
+                return config.getCodebaseUrl();
+            }
+        };
+
+        endpoint.outstandingRequests.incrementAndGet();
+        long start = System.nanoTime();
+        try {
+            RemoteInvocationResult result = delegate.executeRequest(endpointConfig, invocation);
+            endpoint.succeeded(System.nanoTime() - start);
+
+            return result;
+        } catch (Exception ex) {
+            if (isEndpointFailure(ex)) {
+                endpoint.failed(consecutiveFailuresToEject, ejectionMillis, maxEjectionMillis);
+            } else {
+                endpoint.released();
+            }
+            throw ex;
+        } finally {
+            endpoint.outstandingRequests.decrementAndGet();
+        }
+    }
+
+    /**
+     * @return {@code true} if the endpoint could not be reached, stopped responding or has nothing serving the service,
+     * as opposed to e.g. an error response from the route or an argument that cannot be serialized
+     */
+    private static boolean isEndpointFailure(Exception ex) {
+        if (ex instanceof UnsuccessfulResponseException) {
+            switch (((UnsuccessfulResponseException) ex).getStatusCode()) {
+                case HttpURLConnection.HTTP_NOT_FOUND:
+                case HttpURLConnection.HTTP_BAD_GATEWAY:
+                case HttpURLConnection.HTTP_UNAVAILABLE:
+                case HttpURLConnection.HTTP_GATEWAY_TIMEOUT:
+                    return true;
+                default:
+                    return false;
+            }
+        }
+        return ex instanceof SocketException
+                || ex instanceof SocketTimeoutException
+                || ex instanceof UnknownHostException
+                || ex instanceof RemoteConnectFailureException;
+    }
+
+    /**
+     * @param excluded endpoint to avoid if there is any other choice, may be {@code null}
+     */
+    private Endpoint choose(Endpoint excluded) {
+        long now = System.currentTimeMillis();
+        int startIndex = (nextStartIndex.getAndIncrement() & Integer.MAX_VALUE) % endpoints.size();
+
+        List<Endpoint> candidates = new ArrayList<Endpoint>(endpoints.size());
+        for (int i = 0; i < endpoints.size(); i++) {
+            Endpoint endpoint = endpoints.get((startIndex + i) % endpoints.size());
+            if (endpoint != excluded && endpoint.isAvailable(now)) {
+                candidates.add(endpoint);
+            }
+        }
+        if (!candidates.isEmpty()) {
+            Endpoint chosen = strategy.choose(candidates);
+            if (chosen.tryAcquire(now)) {
+                return chosen;
+            }
+        }
+
+        // Everything is ejected: rather than failing outright, try whichever is due back soonest
+        Endpoint soonest = null;
+        for (Endpoint endpoint : endpoints) {
+            if (endpoint == excluded && endpoints.size() > 1) {
+                continue;
+            }
+            if (soonest == null || endpoint.ejectedUntil < soonest.ejectedUntil) {
+                soonest = endpoint;
+            }
+        }
+        return soonest;
+    }
+
+    /**
+     * {@link SimpleHttpInvokerRequestExecutor} that reports an unsuccessful response as
+     * {@link UnsuccessfulResponseException}, so that the status code can tell an unavailable endpoint apart from a
+     * failing route.
+     */
+    public static class StatusReportingHttpInvokerRequestExecutor extends SimpleHttpInvokerRequestExecutor {
+
+        @Override
+        protected void validateResponse(
+                HttpInvokerClientConfiguration config,
+                HttpURLConnection con) throws IOException {
+            int statusCode = con.getResponseCode();
+            if (statusCode >= 300) {
+                throw new UnsuccessfulResponseException(statusCode, con.getResponseMessage());
+            }
+        }
+    }
+
+    /**
+     * Thrown by a delegate for a response that is not 2xx.
+     */
+    public static class UnsuccessfulResponseException extends IOException {
+
+        private static final long serialVersionUID = 1L;
+        private final int statusCode;
+
+        public UnsuccessfulResponseException(int statusCode, String statusMessage) {
+            super("Did not receive successful HTTP response: status code = " + statusCode
+                    + ", status message = [" + statusMessage + "]");
+            this.statusCode = statusCode;
+        }
+
+        public int getStatusCode() {
+            return statusCode;
+        }
+    }
+
+    /**
+     * How to pick among endpoints that are in rotation.
+     */
+    public enum Strategy {
+
+        /**
+         * Pick the endpoint with the fewest invocations in flight from this executor, taking turns on ties.
+         */
+        LEAST_OUTSTANDING_REQUESTS {
+
+            @Override
+            Endpoint choose(List<Endpoint> candidates) {
+                Endpoint chosen = null;
+                int chosenOutstandingRequests = Integer.MAX_VALUE;
+                for (Endpoint candidate : candidates) {
+                    int outstandingRequests = candidate.outstandingRequests.get();
+                    if (outstandingRequests < chosenOutstandingRequests) {
+                        chosen = candidate;
+                        chosenOutstandingRequests = outstandingRequests;
+                    }
+                }
+                return chosen;
+            }
+        },
+        /**
+         * Pick at random, weighted inversely to each endpoint's recent average latency multiplied by its invocations
+         * in flight. Endpoints without any latency sample yet are tried first.
+         */
+        LATENCY_WEIGHTED {
+
+            @Override
+            Endpoint choose(List<Endpoint> candidates) {
+                double[] weights = new double[candidates.size()];
+                double totalWeight = 0;
+                for (int i = 0; i < weights.length; i++) {
+                    Endpoint candidate = candidates.get(i);
+                    long averageLatencyNanos = candidate.averageLatencyNanos;
+                    if (averageLatencyNanos == 0) {
+                        return candidate;
+                    }
+                    weights[i] = 1.0 / (averageLatencyNanos * (candidate.outstandingRequests.get() + 1.0));
+                    totalWeight += weights[i];
+                }
+
+                double target = RANDOM.nextDouble() * totalWeight;
+                for (int i = 0; i < weights.length - 1; i++) {
+                    target -= weights[i];
+                    if (target < 0) {
+                        return candidates.get(i);
+                    }
+                }
+                return candidates.get(weights.length - 1);
+            }
+        };
+
+        private static final Random RANDOM = new Random();
+
+        abstract Endpoint choose(List<Endpoint> candidates);
+    }
+
+    static final class Endpoint {
+
+        private static final int LATENCY_SMOOTHING = 4;
+        final String serviceUrl;
+        final AtomicInteger outstandingRequests = new AtomicInteger();
+        private final AtomicBoolean probing = new AtomicBoolean();
+        volatile long averageLatencyNanos = 0;
+        volatile long ejectedUntil = 0;
+        private volatile int consecutiveFailures = 0;
+        private volatile boolean ejected = false;
+
+        Endpoint(String serviceUrl) {
+            this.serviceUrl = serviceUrl;
+        }
+
+        boolean isAvailable(long now) {
+            if (!ejected) {
+                return true;
+            }
+            return now >= ejectedUntil && !probing.get();
+        }
+
+        /**
+         * @return {@code false} if another invocation has already claimed the probe of this ejected endpoint
+         */
+        boolean tryAcquire(long now) {
+            if (!ejected) {
+                return true;
+            }
+            return now >= ejectedUntil && probing.compareAndSet(false, true);
+        }
+
+        synchronized void succeeded(long latencyNanos) {
+            if (averageLatencyNanos == 0) {
+                averageLatencyNanos = latencyNanos;
+            } else {
+                averageLatencyNanos += (latencyNanos - averageLatencyNanos) / LATENCY_SMOOTHING;
+            }
+            consecutiveFailures = 0;
+            ejected = false;
+            ejectedUntil = 0;
+            probing.set(false);
+        }
+
+        synchronized void failed(int consecutiveFailuresToEject, long ejectionMillis, long maxEjectionMillis) {
+            consecutiveFailures++;
+            if (consecutiveFailures >= consecutiveFailuresToEject) {
+                long ejection = ejectionMillis << Math.min(consecutiveFailures - consecutiveFailuresToEject, 20);
+                ejectedUntil = System.currentTimeMillis() + Math.min(ejection, maxEjectionMillis);
+                ejected = true;
+            }
+            probing.set(false);
+        }
+
+        /**
+         * Leaves the endpoint as it was, except for giving up the probe if this invocation held it.
+         */
+        void released() {
+            probing.set(false);
+        }
+    }
+}
@@ -0,0 +1,182 @@
+/*
+ * Copyright 2015 yihtserns.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.yihtserns.test.camel.spring.remoting;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import org.apache.camel.AsyncCallback;
+import org.apache.camel.AsyncProcessor;
+import org.apache.camel.Exchange;
+import org.apache.camel.Processor;
+import org.apache.camel.api.management.ManagedAttribute;
+import org.apache.camel.api.management.ManagedOperation;
+import org.apache.camel.api.management.ManagedResource;
+import org.apache.camel.support.ServiceSupport;
+import org.apache.camel.util.AsyncProcessorHelper;
+import org.apache.camel.util.ServiceHelper;
+
+/**
+ * Runs the wrapped processor on one of several single-threaded lanes, chosen by hashing the
+ * {@link SpringRemotingHttpBinding#PARTITION_KEY partition key} of the invocation. Invocations with the same key are
+ * processed one at a time in arrival order, so the wrapped processor can keep per-key state without locking, while
+ * different keys are spread across lanes. Invocations without a partition key are processed on the calling thread.
+ * <p>
+ * Each lane queues at most {@code laneCapacity} waiting invocations; beyond that the invocation fails with
+ * {@link RejectedExecutionException}.
+ *
+ * @author yihtserns
+ * @see PartitionKey
+ */
+@ManagedResource(description = "Partitioned Processor")
+public class PartitionedProcessor extends ServiceSupport implements AsyncProcessor {
+
+    private final Processor processor;
+    private final int laneCount;
+    private final int laneCapacity;
+    private ThreadPoolExecutor[] lanes;
+
+    public PartitionedProcessor(Processor processor, int laneCount, int laneCapacity) {
+        if (laneCount < 1) {
+            throw new IllegalArgumentException("Lane count must be at least 1, but was " + laneCount);
+        }
+        if (laneCapacity < 1) {
+            throw new IllegalArgumentException("Lane capacity must be at least 1, but was " + laneCapacity);
+        }
+        this.processor = processor;
+        this.laneCount = laneCount;
+        this.laneCapacity = laneCapacity;
+    }
+
+    @Override
+    public void process(Exchange exchange) throws Exception {
+        AsyncProcessorHelper.process(this, exchange);
+    }
+
+    @Override
+    public boolean process(final Exchange exchange, final AsyncCallback callback) {
+        Object partitionKey = exchange.getProperty(SpringRemotingHttpBinding.PARTITION_KEY);
+        if (partitionKey == null) {
+            processIn(exchange);
+            callback.done(true);
+            return true;
+        }
+
+        try {
+            lanes[laneOf(partitionKey)].execute(new Runnable() {
+
+                @Override
+                public void run() {
+                    processIn(exchange);
+                    callback.done(false);
+                }
+            });
+            return false;
+        } catch (RejectedExecutionException ex) {
+            exchange.setException(ex);
+            callback.done(true);
+            return true;
+        }
+    }
+
+    private void processIn(Exchange exchange) {
+        try {
+            processor.process(exchange);
+        } catch (Throwable t) {
+            exchange.setException(t);
+        }
+    }
+
+    int laneOf(Object partitionKey) {
+        int hash = partitionKey.hashCode();
+        hash ^= (hash >>> 16);
+
+        return (hash & Integer.MAX_VALUE) % laneCount;
+    }
+
+    @ManagedAttribute(description = "Number of lanes")
+    public int getLaneCount() {
+        return laneCount;
+    }
+
+    @ManagedAttribute(description = "Maximum number of invocations each lane can queue")
+    public int getLaneCapacity() {
+        return laneCapacity;
+    }
+
+    /**
+     * @return number of invocations waiting in the lane, not counting the one being processed
+     */
+    @ManagedOperation(description = "Number of invocations waiting in the given lane")
+    public int getLaneDepth(int lane) {
+        return lanes[lane].getQueue().size();
+    }
+
+    @ManagedAttribute(description = "Number of invocations waiting in the fullest lane")
+    public int getMaxLaneDepth() {
+        int maxLaneDepth = 0;
+        for (int lane = 0; lane < laneCount; lane++) {
+            maxLaneDepth = Math.max(maxLaneDepth, getLaneDepth(lane));
+        }
+        return maxLaneDepth;
+    }
+
+    @ManagedAttribute(description = "Number of invocations waiting in all lanes")
+    public int getTotalLaneDepth() {
+        int totalLaneDepth = 0;
+        for (int lane = 0; lane < laneCount; lane++) {
+            totalLaneDepth += getLaneDepth(lane);
+        }
+        return totalLaneDepth;
+    }
+
+    @Override
+    protected void doStart() throws Exception {
+        ServiceHelper.startService(processor);
+
+        lanes = new ThreadPoolExecutor[laneCount];
+        for (int lane = 0; lane < laneCount; lane++) {
+            final String threadName = "PartitionedProcessor-lane-" + lane;
+            lanes[lane] = new ThreadPoolExecutor(
+                    1, 1,
+                    0, TimeUnit.MILLISECONDS,
+                    new ArrayBlockingQueue<Runnable>(laneCapacity),
+                    new ThreadFactory() {
+
+                        @Override
+                        public Thread newThread(Runnable runnable) {
+                            Thread thread = new Thread(runnable, threadName);
+                            thread.setDaemon(true);
+
+                            return thread;
+                        }
+                    });
+        }
+    }
+
+    @Override
+    protected void doStop() throws Exception {
+        for (ThreadPoolExecutor lane : lanes) {
+            lane.shutdown();
+        }
+        for (ThreadPoolExecutor lane : lanes) {
+            lane.awaitTermination(30, TimeUnit.SECONDS);
+        }
+        ServiceHelper.stopService(processor);
+    }
+}
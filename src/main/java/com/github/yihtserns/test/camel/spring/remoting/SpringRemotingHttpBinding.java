@@ -15,13 +15,20 @@
  */
 package com.github.yihtserns.test.camel.spring.remoting;
 
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
 import java.lang.annotation.Annotation;
 import java.lang.reflect.Method;
 import java.util.Arrays;
+import java.util.Collection;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Locale;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.regex.Pattern;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 import org.apache.camel.Body;
@@ -29,6 +36,7 @@ import org.apache.camel.Exchange;
 import org.apache.camel.Header;
 import org.apache.camel.Message;
 import org.apache.camel.http.common.DefaultHttpBinding;
+import org.apache.camel.http.common.HttpConstants;
 import org.apache.camel.http.common.HttpMessage;
 import org.springframework.remoting.support.RemoteInvocation;
 import org.springframework.remoting.support.RemoteInvocationResult;
@@ -39,8 +47,25 @@ import org.springframework.remoting.support.RemoteInvocationResult;
  */
 public class SpringRemotingHttpBinding extends DefaultHttpBinding {
 
+    /**
+     * Exchange property holding the argument of the {@link PartitionKey} parameter, if the invoked method has one.
+     */
+    public static final String PARTITION_KEY = "PartitionKey";
+    /**
+     * Exchange property set to {@code true} if the body of the invoked method is annotated with {@link FanOut}.
+     */
+    public static final String FAN_OUT = "FanOut";
+    /**
+     * Name of the {@link RemoteInvocation} attribute holding the caller's trace id, and of the exchange property it is
+     * copied to.
+     */
+    public static final String TRACE_ID = "TraceId";
     private static final String EXPECTS_RESPONSE = "ExpectsResponse";
+    private static final String TIMINGS = "Timings";
+    private static final String SERVER_TIMING = "Server-Timing";
     private Map<MethodInvocation, MethodInvocation> methodInvocations = new HashMap<MethodInvocation, MethodInvocation>();
+    private boolean serverTimingEnabled = false;
+    private boolean timingsInResult = false;
 
     /**
      * @see #forServiceInterface(Class)
@@ -48,30 +73,124 @@ public class SpringRemotingHttpBinding extends DefaultHttpBinding {
     private SpringRemotingHttpBinding() {
     }
 
+    /**
+     * @param serverTimingEnabled {@code true} to return how long each phase of the call took in a
+     * {@code Server-Timing} response header
+     */
+    public void setServerTimingEnabled(boolean serverTimingEnabled) {
+        this.serverTimingEnabled = serverTimingEnabled;
+    }
+
+    /**
+     * @param timingsInResult {@code true} to return how long each phase of the call took, up to the route, in a
+     * {@link TimedRemoteInvocationResult}
+     */
+    public void setTimingsInResult(boolean timingsInResult) {
+        this.timingsInResult = timingsInResult;
+    }
+
     @Override
     public void readRequest(HttpServletRequest request, HttpMessage message) {
+        if (!serverTimingEnabled && !timingsInResult) {
+            super.readRequest(request, message);
+
+            unwrapRemoteInvocation(message);
+            return;
+        }
+
+        Timings timings = new Timings();
+        message.getExchange().setProperty(TIMINGS, timings);
+
+        long start = System.nanoTime();
         super.readRequest(request, message);
+        timings.deserializeNanos = System.nanoTime() - start - Math.max(timings.readNanos, 0);
 
         unwrapRemoteInvocation(message);
+        timings.routeStart = System.nanoTime();
+    }
+
+    @Override
+    public Object parseBody(HttpMessage httpMessage) throws IOException {
+        Timings timings = httpMessage.getExchange().getProperty(TIMINGS, Timings.class);
+        if (timings == null) {
+            return super.parseBody(httpMessage);
+        }
+
+        long start = System.nanoTime();
+        try {
+            return super.parseBody(httpMessage);
+        } finally {
+            timings.readNanos = System.nanoTime() - start;
+        }
     }
 
     void unwrapRemoteInvocation(Message message) {
+        long start = System.nanoTime();
         RemoteInvocation remoteInvocation = (RemoteInvocation) message.getBody();
         MethodInvocation methodInvocation = methodInvocations.get(MethodInvocation.from(remoteInvocation));
         Object[] arguments = remoteInvocation.getArguments();
 
+        Serializable traceId = remoteInvocation.getAttribute(TRACE_ID);
+        if (traceId != null) {
+            message.getExchange().setProperty(TRACE_ID, traceId);
+        }
+
         message.setBody(methodInvocation.getBody(arguments));
         message.getHeaders().putAll(methodInvocation.getHeaders(arguments));
         message.getExchange().setProperty(EXPECTS_RESPONSE, methodInvocation.expectsResponse());
+        if (methodInvocation.hasPartitionKey()) {
+            message.getExchange().setProperty(PARTITION_KEY, methodInvocation.getPartitionKey(arguments));
+        }
+        if (methodInvocation.fanOut) {
+            message.getExchange().setProperty(FAN_OUT, true);
+        }
+
+        Timings timings = message.getExchange().getProperty(TIMINGS, Timings.class);
+        if (timings != null) {
+            timings.dispatchNanos = System.nanoTime() - start;
+        }
     }
 
     @Override
     public void doWriteResponse(Message message, HttpServletResponse response, Exchange exchange) throws IOException {
+        Timings timings = exchange.getProperty(TIMINGS, Timings.class);
+        if (timings != null && timings.routeStart != -1) {
+            timings.routeNanos = System.nanoTime() - timings.routeStart;
+        }
+
         wrapInRemoteInvocationResult(message);
 
         super.doWriteResponse(message, response, exchange);
     }
 
+    /**
+     * Serializes the result up front when timing the call, so that the time taken can still go into the
+     * {@code Server-Timing} header before the response is committed.
+     */
+    @Override
+    protected void doWriteDirectResponse(Message message, HttpServletResponse response, Exchange exchange) throws IOException {
+        Timings timings = exchange.getProperty(TIMINGS, Timings.class);
+        if (!serverTimingEnabled || timings == null || !(message.getBody() instanceof RemoteInvocationResult)) {
+            super.doWriteDirectResponse(message, response, exchange);
+            return;
+        }
+
+        long start = System.nanoTime();
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(1024);
+        ObjectOutputStream out = new ObjectOutputStream(bytes);
+        try {
+            out.writeObject(message.getBody());
+        } finally {
+            out.close();
+        }
+        timings.serializeNanos = System.nanoTime() - start;
+
+        response.setHeader(SERVER_TIMING, timings.toServerTiming(exchange.getProperty(TRACE_ID, String.class)));
+        response.setContentType(HttpConstants.CONTENT_TYPE_JAVA_SERIALIZED_OBJECT);
+        response.setContentLength(bytes.size());
+        bytes.writeTo(response.getOutputStream());
+    }
+
     void wrapInRemoteInvocationResult(Message message) {
         Object result = null;
 
@@ -79,6 +198,13 @@ public class SpringRemotingHttpBinding extends DefaultHttpBinding {
             result = message.getBody();
         }
 
+        Timings timings = message.getExchange().getProperty(TIMINGS, Timings.class);
+        if (timingsInResult && timings != null) {
+            Serializable traceId = message.getExchange().getProperty(TRACE_ID, Serializable.class);
+            message.setBody(new TimedRemoteInvocationResult(result, traceId, timings.toMap()));
+            return;
+        }
+
         message.setBody(new RemoteInvocationResult(result));
     }
 
@@ -93,6 +219,7 @@ public class SpringRemotingHttpBinding extends DefaultHttpBinding {
             binding.methodInvocations.put(methodInvocation, methodInvocation);
 
             if (method.getParameterTypes().length == 1) {
+                methodInvocation.fanOut = isFanOut(method, 0);
                 continue;
             }
 
@@ -106,6 +233,8 @@ public class SpringRemotingHttpBinding extends DefaultHttpBinding {
             Annotation[][] nParamAnnotations = method.getParameterAnnotations();
             for (int parameterIndex = 0; parameterIndex < nParamAnnotations.length; parameterIndex++) {
                 Annotation[] paramAnnotations = nParamAnnotations[parameterIndex];
+                boolean isHeader = false;
+                boolean isPartitionKey = false;
                 for (Annotation paramAnnotation : paramAnnotations) {
                     Class<? extends Annotation> annotationType = paramAnnotation.annotationType();
                     if (annotationType == Body.class) {
@@ -115,14 +244,62 @@ public class SpringRemotingHttpBinding extends DefaultHttpBinding {
                     if (annotationType == Header.class) {
                         String headerName = Header.class.cast(paramAnnotation).value();
                         methodInvocation.addHeaderIndex(parameterIndex, headerName);
+                        isHeader = true;
+                        continue;
                     }
+                    if (annotationType == PartitionKey.class) {
+                        isPartitionKey = true;
+                    }
+                }
+
+                if (!isPartitionKey) {
+                    continue;
+                }
+                if (!isHeader) {
+                    String msg = String.format(
+                            "The parameter of method '%s' annotated with @PartitionKey must also be annotated with @Header",
+                            method);
+                    throw new IllegalArgumentException(msg);
+                }
+                if (methodInvocation.hasPartitionKey()) {
+                    String msg = String.format(
+                            "Only one of the parameters of method '%s' can be annotated with @PartitionKey",
+                            method);
+                    throw new IllegalArgumentException(msg);
                 }
+                methodInvocation.partitionKeyParameterIndex = parameterIndex;
             }
+            methodInvocation.fanOut = isFanOut(method, methodInvocation.bodyParameterIndex);
         }
 
         return binding;
     }
 
+    private static boolean isFanOut(Method method, int bodyParameterIndex) {
+        Annotation[][] nParamAnnotations = method.getParameterAnnotations();
+        for (int parameterIndex = 0; parameterIndex < nParamAnnotations.length; parameterIndex++) {
+            for (Annotation paramAnnotation : nParamAnnotations[parameterIndex]) {
+                if (paramAnnotation.annotationType() != FanOut.class) {
+                    continue;
+                }
+                if (parameterIndex != bodyParameterIndex) {
+                    String msg = String.format(
+                            "Only the body parameter of method '%s' can be annotated with @FanOut",
+                            method);
+                    throw new IllegalArgumentException(msg);
+                }
+                if (!Collection.class.isAssignableFrom(method.getParameterTypes()[parameterIndex])) {
+                    String msg = String.format(
+                            "The parameter of method '%s' annotated with @FanOut must be a Collection",
+                            method);
+                    throw new IllegalArgumentException(msg);
+                }
+                return true;
+            }
+        }
+        return false;
+    }
+
     private static boolean hasBodyAnnotation(Method method) {
         boolean foundBody = false;
         for (Annotation[] paramAnnotations : method.getParameterAnnotations()) {
@@ -142,9 +319,61 @@ public class SpringRemotingHttpBinding extends DefaultHttpBinding {
         return foundBody;
     }
 
+    /**
+     * Nanoseconds taken by each phase of a call, or -1 for phases not (yet) recorded.
+     */
+    private static final class Timings {
+
+        /**
+         * RFC 7230 token characters, which are all safe in a quoted-string.
+         */
+        private static final Pattern SAFE_TRACE_ID = Pattern.compile("[A-Za-z0-9!#$%&'*+.^_`|~-]{1,128}");
+        public long readNanos = -1;
+        public long deserializeNanos = -1;
+        public long dispatchNanos = -1;
+        public long routeStart = -1;
+        public long routeNanos = -1;
+        public long serializeNanos = -1;
+
+        public Map<String, Long> toMap() {
+            Map<String, Long> phase2Nanos = new LinkedHashMap<String, Long>();
+            putIfRecorded(phase2Nanos, "read", readNanos);
+            putIfRecorded(phase2Nanos, "deserialize", deserializeNanos);
+            putIfRecorded(phase2Nanos, "dispatch", dispatchNanos);
+            putIfRecorded(phase2Nanos, "route", routeNanos);
+            putIfRecorded(phase2Nanos, "serialize", serializeNanos);
+
+            return phase2Nanos;
+        }
+
+        public String toServerTiming(String traceId) {
+            StringBuilder serverTiming = new StringBuilder();
+            for (Entry<String, Long> entry : toMap().entrySet()) {
+                if (serverTiming.length() > 0) {
+                    serverTiming.append(", ");
+                }
+                serverTiming.append(entry.getKey())
+                        .append(";dur=")
+                        .append(String.format(Locale.ROOT, "%.3f", entry.getValue() / 1000000.0));
+            }
+            if (traceId != null && SAFE_TRACE_ID.matcher(traceId).matches()) {
+                serverTiming.append(", trace;desc=\"").append(traceId).append('"');
+            }
+            return serverTiming.toString();
+        }
+
+        private static void putIfRecorded(Map<String, Long> phase2Nanos, String phase, long nanos) {
+            if (nanos != -1) {
+                phase2Nanos.put(phase, nanos);
+            }
+        }
+    }
+
     private static final class MethodInvocation {
 
         public int bodyParameterIndex = 0;
+        public int partitionKeyParameterIndex = -1;
+        public boolean fanOut = false;
         private Map<Integer, String> parameterIndex2HeaderName = new HashMap<Integer, String>();
         private Class<?> returnType = null;
         private String methodName;
@@ -163,6 +392,14 @@ public class SpringRemotingHttpBinding extends DefaultHttpBinding {
             return arguments[bodyParameterIndex];
         }
 
+        public boolean hasPartitionKey() {
+            return partitionKeyParameterIndex != -1;
+        }
+
+        public Object getPartitionKey(Object[] arguments) {
+            return arguments[partitionKeyParameterIndex];
+        }
+
         public Map<String, Object> getHeaders(Object[] arguments) {
             Map<String, Object> headers = new HashMap<String, Object>();
 
@@ -0,0 +1,57 @@
+/*
+ * Copyright 2015 yihtserns.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.yihtserns.test.camel.spring.remoting;
+
+import java.io.Serializable;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import org.springframework.remoting.support.RemoteInvocationResult;
+
+/**
+ * {@link RemoteInvocationResult} that also carries how long the server took for each phase of the call, up to and
+ * including the route. Serializing this result happens after it is created, so that phase is not included.
+ *
+ * @author yihtserns
+ * @see SpringRemotingHttpBinding#setTimingsInResult(boolean)
+ */
+public class TimedRemoteInvocationResult extends RemoteInvocationResult {
+
+    private static final long serialVersionUID = -8232801261052975333L;
+    private final Serializable traceId;
+    private final LinkedHashMap<String, Long> phase2Nanos;
+
+    public TimedRemoteInvocationResult(Object value, Serializable traceId, Map<String, Long> phase2Nanos) {
+        super(value);
+        this.traceId = traceId;
+        this.phase2Nanos = new LinkedHashMap<String, Long>(phase2Nanos);
+    }
+
+    /**
+     * @return the trace id the caller sent as the {@link SpringRemotingHttpBinding#TRACE_ID} attribute, or
+     * {@code null}
+     */
+    public Serializable getTraceId() {
+        return traceId;
+    }
+
+    /**
+     * @return nanoseconds taken by each phase, in the order the phases happened
+     */
+    public Map<String, Long> getTimings() {
+        return Collections.unmodifiableMap(phase2Nanos);
+    }
+}
@@ -0,0 +1,118 @@
+/*
+ * Copyright 2015 yihtserns.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.yihtserns.test.camel.spring.remoting;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.Serializable;
+import java.net.HttpURLConnection;
+import java.util.Locale;
+import java.util.UUID;
+import org.springframework.remoting.httpinvoker.HttpInvokerClientConfiguration;
+import org.springframework.remoting.httpinvoker.SimpleHttpInvokerRequestExecutor;
+import org.springframework.remoting.support.RemoteInvocation;
+import org.springframework.remoting.support.RemoteInvocationResult;
+
+/**
+ * Tags every invocation with a {@link SpringRemotingHttpBinding#TRACE_ID trace id} (unless it already has one), and
+ * logs at debug level the {@code Server-Timing} breakdown returned by a binding with
+ * {@link SpringRemotingHttpBinding#setServerTimingEnabled(boolean) server timing enabled}, next to the latency measured
+ * by the client. Override {@link #callCompleted} to do something else with them.
+ * <p>
+ * The same invocation may be sent by several threads at once, e.g. when hedged, so tagging and serializing it are done
+ * while holding its lock.
+ *
+ * @author yihtserns
+ */
+public class TimingHttpInvokerRequestExecutor extends SimpleHttpInvokerRequestExecutor {
+
+    private final ThreadLocal<Call> currentCall = new ThreadLocal<Call>();
+
+    @Override
+    protected ByteArrayOutputStream getByteArrayOutputStream(RemoteInvocation invocation) throws IOException {
+        long start = System.nanoTime();
+        Serializable traceId;
+        ByteArrayOutputStream baos;
+        synchronized (invocation) {
+            traceId = invocation.getAttribute(SpringRemotingHttpBinding.TRACE_ID);
+            if (traceId == null) {
+                traceId = UUID.randomUUID().toString();
+                invocation.addAttribute(SpringRemotingHttpBinding.TRACE_ID, traceId);
+            }
+            baos = super.getByteArrayOutputStream(invocation);
+        }
+        currentCall.set(new Call(traceId, start));
+
+        return baos;
+    }
+
+    @Override
+    protected void validateResponse(HttpInvokerClientConfiguration config, HttpURLConnection con) throws IOException {
+        super.validateResponse(config, con);
+
+        Call call = currentCall.get();
+        if (call != null) {
+            call.serverTiming = con.getHeaderField("Server-Timing");
+        }
+    }
+
+    @Override
+    protected RemoteInvocationResult doExecuteRequest(
+            HttpInvokerClientConfiguration config,
+            ByteArrayOutputStream baos) throws IOException, ClassNotFoundException {
+        try {
+            return super.doExecuteRequest(config, baos);
+        } finally {
+            Call call = currentCall.get();
+            currentCall.remove();
+            if (call != null) {
+                callCompleted(config, call.traceId, System.nanoTime() - call.start, call.serverTiming);
+            }
+        }
+    }
+
+    /**
+     * @param clientNanos from serializing the invocation until the result was read
+     * @param serverTiming the {@code Server-Timing} response header, or {@code null} if there was none
+     */
+    protected void callCompleted(
+            HttpInvokerClientConfiguration config,
+            Serializable traceId,
+            long clientNanos,
+            String serverTiming) {
+        if (logger.isDebugEnabled()) {
+            logger.debug(String.format(
+                    Locale.ROOT,
+                    "Call to [%s] with trace id [%s] took %.3fms, server timing: [%s]",
+                    config.getServiceUrl(),
+                    traceId,
+                    clientNanos / 1000000.0,
+                    serverTiming));
+        }
+    }
+
+    private static final class Call {
+
+        private final Serializable traceId;
+        private final long start;
+        private String serverTiming = null;
+
+        private Call(Serializable traceId, long start) {
+            this.traceId = traceId;
+            this.start = start;
+        }
+    }
+}
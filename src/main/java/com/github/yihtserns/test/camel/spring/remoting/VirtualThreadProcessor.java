@@ -0,0 +1,143 @@
+/*
+ * Copyright 2015 yihtserns.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.yihtserns.test.camel.spring.remoting;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.apache.camel.AsyncCallback;
+import org.apache.camel.AsyncProcessor;
+import org.apache.camel.Exchange;
+import org.apache.camel.Processor;
+import org.apache.camel.api.management.ManagedAttribute;
+import org.apache.camel.api.management.ManagedResource;
+import org.apache.camel.support.ServiceSupport;
+import org.apache.camel.util.AsyncProcessorHelper;
+import org.apache.camel.util.ServiceHelper;
+
+/**
+ * Runs the wrapped processor on a new virtual thread for each invocation, handing the Jetty thread back as soon as the
+ * invocation is decoded, so a route that blocks on JDBC or downstream calls is no longer limited to one in-flight call
+ * per Jetty thread.
+ * <p>
+ * Virtual threads are looked up reflectively, so this also runs on runtimes without them. There it processes each
+ * invocation on the calling thread, the same as not using this processor at all; {@link #isUsingVirtualThreads()}
+ * tells which one is in effect.
+ *
+ * @author yihtserns
+ */
+@ManagedResource(description = "Virtual Thread Processor")
+public class VirtualThreadProcessor extends ServiceSupport implements AsyncProcessor {
+
+    private final Processor processor;
+    private final AtomicInteger inFlightCount = new AtomicInteger();
+    private volatile ExecutorService executorService;
+
+    public VirtualThreadProcessor(Processor processor) {
+        this.processor = processor;
+    }
+
+    @Override
+    public void process(Exchange exchange) throws Exception {
+        AsyncProcessorHelper.process(this, exchange);
+    }
+
+    @Override
+    public boolean process(final Exchange exchange, final AsyncCallback callback) {
+        ExecutorService executorService = this.executorService;
+        if (executorService == null) {
+            processIn(exchange);
+            callback.done(true);
+            return true;
+        }
+
+        try {
+            executorService.execute(new Runnable() {
+
+                @Override
+                public void run() {
+                    processIn(exchange);
+                    callback.done(false);
+                }
+            });
+            return false;
+        } catch (RejectedExecutionException ex) {
+            exchange.setException(ex);
+            callback.done(true);
+            return true;
+        }
+    }
+
+    private void processIn(Exchange exchange) {
+        inFlightCount.incrementAndGet();
+        try {
+            processor.process(exchange);
+        } catch (Throwable t) {
+            exchange.setException(t);
+        } finally {
+            inFlightCount.decrementAndGet();
+        }
+    }
+
+    /**
+     * @return {@code false} if invocations are processed on the calling thread, because this runtime has no virtual
+     * threads
+     */
+    @ManagedAttribute(description = "Whether invocations run on virtual threads")
+    public boolean isUsingVirtualThreads() {
+        return executorService != null;
+    }
+
+    @ManagedAttribute(description = "Number of invocations being processed")
+    public int getInFlightCount() {
+        return inFlightCount.get();
+    }
+
+    @Override
+    protected void doStart() throws Exception {
+        ServiceHelper.startService(processor);
+
+        executorService = newVirtualThreadPerTaskExecutor();
+    }
+
+    @Override
+    protected void doStop() throws Exception {
+        ExecutorService executorService = this.executorService;
+        if (executorService != null) {
+            executorService.shutdown();
+            executorService.awaitTermination(30, TimeUnit.SECONDS);
+            this.executorService = null;
+        }
+        ServiceHelper.stopService(processor);
+    }
+
+    /**
+     * @return {@code null} if this runtime has no virtual threads
+     */
+    static ExecutorService newVirtualThreadPerTaskExecutor() {
+        try {
+            Method factoryMethod = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+
+            return (ExecutorService) factoryMethod.invoke(null);
+        } catch (Exception ex) {
+            // Before JDK 21, or JDK 19/20 without preview features enabled
+            return null;
+        }
+    }
+}
@@ -0,0 +1,316 @@
+/*
+ * Copyright 2015 yihtserns.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.yihtserns.test.camel.spring.remoting;
+
+import com.github.yihtserns.test.camel.spring.remoting.testutil.Request;
+import com.github.yihtserns.test.camel.spring.remoting.testutil.Response;
+import com.github.yihtserns.test.camel.spring.remoting.testutil.Service;
+import java.io.InputStream;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import org.apache.camel.CamelContext;
+import org.apache.camel.Exchange;
+import org.apache.camel.Message;
+import org.apache.camel.Processor;
+import org.apache.camel.builder.RouteBuilder;
+import org.apache.camel.impl.DefaultCamelContext;
+import org.apache.camel.impl.DefaultExchange;
+import org.apache.camel.impl.DefaultMessage;
+import org.apache.camel.impl.SimpleRegistry;
+import org.junit.After;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.remoting.httpinvoker.HttpInvokerProxyFactoryBean;
+import org.springframework.remoting.support.RemoteInvocation;
+import static org.hamcrest.Matchers.*;
+import static org.hamcrest.MatcherAssert.assertThat;
+
+/**
+ * Fails when a {@link Service} method allocates more bytes per call than its budget in
+ * {@code allocation-budgets.properties}. The failure message gives the measured numbers, so the budgets can be
+ * updated when an increase is intended.
+ *
+ * @author yihtserns
+ */
+public class AllocationRegressionTest {
+
+    private static final String BUDGETS_FILE = "/allocation-budgets.properties";
+    private static final int ROUNDS = 5;
+    private SimpleRegistry registry = new SimpleRegistry();
+    private DefaultCamelContext camelContext = new DefaultCamelContext(registry);
+    private SpringRemotingHttpBinding binding = SpringRemotingHttpBinding.forServiceInterface(Service.class);
+    private com.sun.management.ThreadMXBean threadMXBean;
+    private Properties budgets = new Properties();
+    private List<String> overBudget = new ArrayList<String>();
+
+    @Before
+    public void enableAllocationCounters() throws Exception {
+        Assume.assumeTrue(ManagementFactory.getThreadMXBean() instanceof com.sun.management.ThreadMXBean);
+        threadMXBean = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        Assume.assumeTrue(threadMXBean.isThreadAllocatedMemorySupported());
+        threadMXBean.setThreadAllocatedMemoryEnabled(true);
+
+        InputStream in = getClass().getResourceAsStream(BUDGETS_FILE);
+        try {
+            budgets.load(in);
+        } finally {
+            in.close();
+        }
+    }
+
+    @After
+    public void stopCamelContext() throws Exception {
+        if (camelContext.isStarted()) {
+            camelContext.stop();
+        }
+    }
+
+    @Test
+    public void unwrapRemoteInvocationShouldStayWithinBudget() throws Exception {
+        for (final ServiceCall serviceCall : ServiceCall.values()) {
+            checkBudget("unwrapRemoteInvocation." + serviceCall, measure(2000, new Call() {
+
+                private Message[] messages;
+
+                @Override
+                public void prepare(int count) {
+                    messages = new Message[count];
+                    for (int i = 0; i < count; i++) {
+                        messages[i] = newMessage(serviceCall.toRemoteInvocation());
+                    }
+                }
+
+                @Override
+                public void run(int i) {
+                    binding.unwrapRemoteInvocation(messages[i]);
+                }
+            }));
+        }
+        assertThat(overBudget, is(empty()));
+    }
+
+    @Test
+    public void wrapInRemoteInvocationResultShouldStayWithinBudget() throws Exception {
+        for (final ServiceCall serviceCall : ServiceCall.values()) {
+            checkBudget("wrapInRemoteInvocationResult." + serviceCall, measure(2000, new Call() {
+
+                private Message[] messages;
+
+                @Override
+                public void prepare(int count) {
+                    messages = new Message[count];
+                    for (int i = 0; i < count; i++) {
+                        messages[i] = newMessage(serviceCall.toRemoteInvocation());
+                        binding.unwrapRemoteInvocation(messages[i]);
+                        messages[i].setBody(new Response("Bye!"));
+                    }
+                }
+
+                @Override
+                public void run(int i) {
+                    binding.wrapInRemoteInvocationResult(messages[i]);
+                }
+            }));
+        }
+        assertThat(overBudget, is(empty()));
+    }
+
+    /**
+     * Counts what every thread allocates, since the call is handled by Jetty's threads, not the calling one.
+     */
+    @Test
+    public void roundTripShouldStayWithinBudget() throws Exception {
+        final String url = "http://localhost:8088/trigger";
+
+        registry.put("springRemotingBinding", binding);
+        camelContext.addRoutes(new RouteBuilder() {
+
+            @Override
+            public void configure() throws Exception {
+                from("jetty:" + url + "?httpBindingRef=#springRemotingBinding")
+                        .process(new Processor() {
+
+                            @Override
+                            public void process(Exchange exchange) throws Exception {
+                                Request request = exchange.getIn().getBody(Request.class);
+                                exchange.getIn().setBody(new Response(request.message));
+                            }
+                        });
+            }
+        });
+        camelContext.start();
+
+        HttpInvokerProxyFactoryBean factoryBean = new HttpInvokerProxyFactoryBean();
+        factoryBean.setServiceInterface(Service.class);
+        factoryBean.setServiceUrl(url);
+        factoryBean.afterPropertiesSet();
+        final Service service = (Service) factoryBean.getObject();
+
+        for (final ServiceCall serviceCall : ServiceCall.values()) {
+            checkBudget("roundTrip." + serviceCall, measureAllThreads(200, new Call() {
+
+                @Override
+                public void prepare(int count) {
+                }
+
+                @Override
+                public void run(int i) {
+                    serviceCall.call(service);
+                }
+            }));
+        }
+        assertThat(overBudget, is(empty()));
+    }
+
+    private void checkBudget(String key, long bytesPerCall) {
+        String budget = budgets.getProperty(key);
+        if (budget == null) {
+            overBudget.add(String.format("%s allocated %d bytes per call, but has no budget in %s",
+                    key, bytesPerCall, BUDGETS_FILE));
+        } else if (bytesPerCall > Long.parseLong(budget.trim())) {
+            overBudget.add(String.format("%s allocated %d bytes per call, over its budget of %s",
+                    key, bytesPerCall, budget.trim()));
+        }
+    }
+
+    /**
+     * @return fewest bytes allocated per call by the current thread over several rounds, after a warm-up round
+     */
+    private long measure(int callsPerRound, Call call) throws Exception {
+        long threadId = Thread.currentThread().getId();
+        long fewestBytesPerCall = Long.MAX_VALUE;
+        for (int round = 0; round <= ROUNDS; round++) {
+            call.prepare(callsPerRound);
+
+            long start = threadMXBean.getThreadAllocatedBytes(threadId);
+            for (int i = 0; i < callsPerRound; i++) {
+                call.run(i);
+            }
+            long bytesPerCall = (threadMXBean.getThreadAllocatedBytes(threadId) - start) / callsPerRound;
+
+            if (round > 0) {
+                fewestBytesPerCall = Math.min(fewestBytesPerCall, bytesPerCall);
+            }
+        }
+        return fewestBytesPerCall;
+    }
+
+    /**
+     * @return fewest bytes allocated per call by all threads over several rounds, after a warm-up round
+     */
+    private long measureAllThreads(int callsPerRound, Call call) throws Exception {
+        long fewestBytesPerCall = Long.MAX_VALUE;
+        for (int round = 0; round <= ROUNDS; round++) {
+            call.prepare(callsPerRound);
+
+            long[] threadIds = threadMXBean.getAllThreadIds();
+            long[] start = threadMXBean.getThreadAllocatedBytes(threadIds);
+            for (int i = 0; i < callsPerRound; i++) {
+                call.run(i);
+            }
+            long[] end = threadMXBean.getThreadAllocatedBytes(threadIds);
+
+            long allocatedBytes = 0;
+            for (int t = 0; t < threadIds.length; t++) {
+                if (start[t] != -1 && end[t] != -1) {
+                    allocatedBytes += end[t] - start[t];
+                }
+            }
+            if (round > 0) {
+                fewestBytesPerCall = Math.min(fewestBytesPerCall, allocatedBytes / callsPerRound);
+            }
+        }
+        return fewestBytesPerCall;
+    }
+
+    private static Message newMessage(RemoteInvocation remoteInvocation) {
+        DefaultMessage message = new DefaultMessage();
+        message.setExchange(new DefaultExchange((CamelContext) null));
+        message.setBody(remoteInvocation);
+
+        return message;
+    }
+
+    private interface Call {
+
+        /**
+         * Sets up everything the next {@code count} calls need, so that it is not counted.
+         */
+        void prepare(int count);
+
+        void run(int i);
+    }
+
+    private enum ServiceCall {
+
+        SERVICE("service(Request)") {
+
+            @Override
+            public RemoteInvocation toRemoteInvocation() {
+                return new RemoteInvocation("service", new Class[]{Request.class}, new Object[]{new Request("Hi!")});
+            }
+
+            @Override
+            public void call(Service service) {
+                service.service(new Request("Hi!"));
+            }
+        },
+        SERVICE_WITH_TIMEOUT("service(long,Request)") {
+
+            @Override
+            public RemoteInvocation toRemoteInvocation() {
+                return new RemoteInvocation(
+                        "service",
+                        new Class[]{long.class, Request.class},
+                        new Object[]{1000L, new Request("Hi!")});
+            }
+
+            @Override
+            public void call(Service service) {
+                service.service(1000, new Request("Hi!"));
+            }
+        },
+        SEND("send(Request)") {
+
+            @Override
+            public RemoteInvocation toRemoteInvocation() {
+                return new RemoteInvocation("send", new Class[]{Request.class}, new Object[]{new Request("Hi!")});
+            }
+
+            @Override
+            public void call(Service service) {
+                service.send(new Request("Hi!"));
+            }
+        };
+        private final String signature;
+
+        private ServiceCall(String signature) {
+            this.signature = signature;
+        }
+
+        public abstract RemoteInvocation toRemoteInvocation();
+
+        public abstract void call(Service service);
+
+        @Override
+        public String toString() {
+            return signature;
+        }
+    }
+}
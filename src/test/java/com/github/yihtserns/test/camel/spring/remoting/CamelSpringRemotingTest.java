@@ -18,7 +18,15 @@ package com.github.yihtserns.test.camel.spring.remoting;
 import com.github.yihtserns.test.camel.spring.remoting.testutil.Service;
 import com.github.yihtserns.test.camel.spring.remoting.testutil.Request;
 import com.github.yihtserns.test.camel.spring.remoting.testutil.Response;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import org.apache.camel.Body;
 import org.apache.camel.Exchange;
+import org.apache.camel.Header;
 import org.apache.camel.Processor;
 import org.apache.camel.builder.RouteBuilder;
 import org.apache.camel.component.mock.MockEndpoint;
@@ -150,4 +158,166 @@ public class CamelSpringRemotingTest {
         service.send(new Request("Hi!"));
         mock.assertIsSatisfied(1000);
     }
+
+    @Test
+    public void canProcessSamePartitionKeyOnOneLane() throws Exception {
+        final String url = "http://localhost:8088/trigger";
+        final Set<String> laneThreads = Collections.synchronizedSet(new HashSet<String>());
+
+        registry.put("springRemotingBinding", SpringRemotingHttpBinding.forServiceInterface(PartitionedService.class));
+        camelContext.addRoutes(new RouteBuilder() {
+
+            @Override
+            public void configure() throws Exception {
+                from("jetty:" + url + "?httpBindingRef=#springRemotingBinding")
+                        .process(new PartitionedProcessor(new Processor() {
+
+                            @Override
+                            public void process(Exchange exchange) throws Exception {
+                                laneThreads.add(Thread.currentThread().getName());
+
+                                Request request = exchange.getIn().getMandatoryBody(Request.class);
+                                String id = exchange.getIn().getHeader("id", String.class);
+                                exchange.getIn().setBody(new Response(id + ": " + request.message));
+                            }
+                        }, 4, 100));
+            }
+        });
+        camelContext.start();
+
+        HttpInvokerProxyFactoryBean factoryBean = new HttpInvokerProxyFactoryBean();
+        factoryBean.setServiceInterface(PartitionedService.class);
+        factoryBean.setServiceUrl(url);
+        factoryBean.afterPropertiesSet();
+        final PartitionedService service = (PartitionedService) factoryBean.getObject();
+
+        final List<Response> responses = Collections.synchronizedList(new ArrayList<Response>());
+        List<Thread> callers = new ArrayList<Thread>();
+        for (int i = 0; i < 4; i++) {
+            Thread caller = new Thread() {
+
+                @Override
+                public void run() {
+                    for (int i = 0; i < 5; i++) {
+                        responses.add(service.service("customer-1", new Request("Hi!")));
+                    }
+                }
+            };
+            caller.start();
+            callers.add(caller);
+        }
+        for (Thread caller : callers) {
+            caller.join();
+        }
+
+        assertThat(responses, hasSize(20));
+        assertThat(responses.get(0).message, is("customer-1: Hi!"));
+        assertThat(laneThreads, hasSize(1));
+    }
+
+    @Test
+    public void canFanOutCollectionBody() throws Exception {
+        final String url = "http://localhost:8088/trigger";
+
+        registry.put("springRemotingBinding", SpringRemotingHttpBinding.forServiceInterface(BulkService.class));
+        camelContext.addRoutes(new RouteBuilder() {
+
+            @Override
+            public void configure() throws Exception {
+                from("jetty:" + url + "?httpBindingRef=#springRemotingBinding")
+                        .process(new FanOutProcessor(new Processor() {
+
+                            @Override
+                            public void process(Exchange exchange) throws Exception {
+                                Request request = exchange.getIn().getMandatoryBody(Request.class);
+                                exchange.getIn().setBody(new Response(request.message + " Bye!"));
+                            }
+                        }, 4));
+            }
+        });
+        camelContext.start();
+
+        HttpInvokerProxyFactoryBean factoryBean = new HttpInvokerProxyFactoryBean();
+        factoryBean.setServiceInterface(BulkService.class);
+        factoryBean.setServiceUrl(url);
+        factoryBean.afterPropertiesSet();
+        BulkService service = (BulkService) factoryBean.getObject();
+
+        List<Request> requests = new ArrayList<Request>();
+        for (int i = 0; i < 10; i++) {
+            requests.add(new Request("Hi " + i + "!"));
+        }
+        List<Response> responses = service.service(requests);
+
+        assertThat(responses, hasSize(10));
+        for (int i = 0; i < 10; i++) {
+            assertThat(responses.get(i).message, is("Hi " + i + "! Bye!"));
+        }
+    }
+
+    @Test
+    public void canProcessBlockingCallsOnVirtualThreads() throws Exception {
+        final String url = "http://localhost:8088/trigger";
+        final int callerCount = 20;
+        final CountDownLatch allBlocked = new CountDownLatch(callerCount);
+
+        registry.put("springRemotingBinding", SpringRemotingHttpBinding.forServiceInterface(Service.class));
+        camelContext.addRoutes(new RouteBuilder() {
+
+            @Override
+            public void configure() throws Exception {
+                from("jetty:" + url + "?httpBindingRef=#springRemotingBinding")
+                        .process(new VirtualThreadProcessor(new Processor() {
+
+                            @Override
+                            public void process(Exchange exchange) throws Exception {
+                                allBlocked.countDown();
+                                allBlocked.await();
+
+                                Request request = exchange.getIn().getMandatoryBody(Request.class);
+                                exchange.getIn().setBody(new Response(request.message + " Bye!"));
+                            }
+                        }));
+            }
+        });
+        camelContext.start();
+
+        HttpInvokerProxyFactoryBean factoryBean = new HttpInvokerProxyFactoryBean();
+        factoryBean.setServiceInterface(Service.class);
+        factoryBean.setServiceUrl(url);
+        factoryBean.afterPropertiesSet();
+        final Service service = (Service) factoryBean.getObject();
+
+        final List<Response> responses = Collections.synchronizedList(new ArrayList<Response>());
+        List<Thread> callers = new ArrayList<Thread>();
+        for (int i = 0; i < callerCount; i++) {
+            Thread caller = new Thread() {
+
+                @Override
+                public void run() {
+                    responses.add(service.service(new Request("Hi!")));
+                }
+            };
+            caller.start();
+            callers.add(caller);
+        }
+        for (Thread caller : callers) {
+            caller.join(5000);
+        }
+
+        assertThat(responses, hasSize(callerCount));
+        for (Response response : responses) {
+            assertThat(response.message, is("Hi! Bye!"));
+        }
+    }
+
+    public interface BulkService {
+
+        List<Response> service(@FanOut List<Request> reqs);
+    }
+
+    public interface PartitionedService {
+
+        Response service(@Header("id") @PartitionKey String id, @Body Request req);
+    }
 }
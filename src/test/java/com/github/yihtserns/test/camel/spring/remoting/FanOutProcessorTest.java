@@ -0,0 +1,204 @@
+/*
+ * Copyright 2015 yihtserns.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.yihtserns.test.camel.spring.remoting;
+
+import com.github.yihtserns.test.camel.spring.remoting.FanOutProcessor.FailurePolicy;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import org.apache.camel.CamelContext;
+import org.apache.camel.Exchange;
+import org.apache.camel.Processor;
+import org.apache.camel.impl.DefaultCamelContext;
+import org.apache.camel.impl.DefaultExchange;
+import org.junit.After;
+import org.junit.Test;
+import static org.hamcrest.Matchers.*;
+import static org.hamcrest.MatcherAssert.assertThat;
+
+/**
+ * @author yihtserns
+ */
+public class FanOutProcessorTest {
+
+    private CamelContext camelContext = new DefaultCamelContext();
+    private FanOutProcessor fanOutProcessor;
+
+    @After
+    public void stopProcessor() throws Exception {
+        if (fanOutProcessor != null) {
+            fanOutProcessor.stop();
+        }
+    }
+
+    @Test
+    public void shouldProcessItemsConcurrentlyAndKeepOriginalOrder() throws Exception {
+        final Set<String> threads = Collections.synchronizedSet(new HashSet<String>());
+        fanOutProcessor = new FanOutProcessor(new Processor() {
+
+            @Override
+            public void process(Exchange exchange) throws Exception {
+                threads.add(Thread.currentThread().getName());
+
+                int item = exchange.getIn().getBody(Integer.class);
+                Thread.sleep((10 - item) * 10);
+                exchange.getIn().setBody(item * 2);
+            }
+        }, 4);
+        fanOutProcessor.start();
+
+        Exchange exchange = newFanOutExchange(Arrays.asList(0, 1, 2, 3, 4, 5, 6, 7, 8, 9));
+        fanOutProcessor.process(exchange);
+
+        assertThat(exchange.getException(), is(nullValue()));
+        assertThat((List<?>) exchange.getIn().getBody(List.class), contains((Object) 0, 2, 4, 6, 8, 10, 12, 14, 16, 18));
+        assertThat(threads, hasSize(4));
+    }
+
+    @Test(timeout = 5000)
+    public void shouldNotWaitForOtherCallsWhenPoolIsBusy() throws Exception {
+        final CountDownLatch blockedItems = new CountDownLatch(4);
+        final CountDownLatch release = new CountDownLatch(1);
+        fanOutProcessor = new FanOutProcessor(new Processor() {
+
+            @Override
+            public void process(Exchange exchange) throws Exception {
+                if (exchange.getIn().getBody(Integer.class) < 0) {
+                    blockedItems.countDown();
+                    release.await();
+                }
+            }
+        }, 2);
+        fanOutProcessor.start();
+
+        List<Thread> blockedCalls = new ArrayList<Thread>();
+        for (int i = 0; i < 2; i++) {
+            Thread blockedCall = new Thread() {
+
+                @Override
+                public void run() {
+                    try {
+                        fanOutProcessor.process(newFanOutExchange(Arrays.asList(-1, -2)));
+                    } catch (Exception ex) {
+                        throw new RuntimeException(ex);
+                    }
+                }
+            };
+            blockedCall.start();
+            blockedCalls.add(blockedCall);
+        }
+        blockedItems.await();
+
+        Exchange exchange = newFanOutExchange(Arrays.asList(1, 2));
+        fanOutProcessor.process(exchange);
+        assertThat((List<?>) exchange.getIn().getBody(List.class), contains((Object) 1, 2));
+
+        release.countDown();
+        for (Thread blockedCall : blockedCalls) {
+            blockedCall.join();
+        }
+    }
+
+    @Test
+    public void shouldFailWholeExchangeWhenAnItemFailsByDefault() throws Exception {
+        final Exception exception = new Exception("Expected");
+        fanOutProcessor = new FanOutProcessor(failOn(3, exception), 2);
+        fanOutProcessor.start();
+
+        Exchange exchange = newFanOutExchange(Arrays.asList(1, 2, 3, 4));
+        fanOutProcessor.process(exchange);
+
+        assertThat(exchange.getException(), is(sameInstance((Object) exception)));
+    }
+
+    @Test
+    public void shouldFailWholeExchangeWhenAnItemThrowsError() throws Exception {
+        final Error error = new Error("Expected");
+        fanOutProcessor = new FanOutProcessor(new Processor() {
+
+            @Override
+            public void process(Exchange exchange) throws Exception {
+                if (exchange.getIn().getBody(Integer.class) % 2 == 0) {
+                    throw error;
+                }
+            }
+        }, 2);
+        fanOutProcessor.start();
+
+        Exchange exchange = newFanOutExchange(Arrays.asList(1, 2, 3, 4));
+        fanOutProcessor.process(exchange);
+
+        assertThat(exchange.getException(), is(notNullValue()));
+        assertThat(exchange.getException().getCause(), is(sameInstance((Object) error)));
+    }
+
+    @Test
+    public void canReplaceFailedItemsWithNull() throws Exception {
+        fanOutProcessor = new FanOutProcessor(failOn(3, new Exception("Expected")), 2);
+        fanOutProcessor.setFailurePolicy(FailurePolicy.NULL_ON_FAILURE);
+        fanOutProcessor.start();
+
+        Exchange exchange = newFanOutExchange(Arrays.asList(1, 2, 3, 4));
+        fanOutProcessor.process(exchange);
+
+        assertThat(exchange.getException(), is(nullValue()));
+        assertThat((List<?>) exchange.getIn().getBody(List.class), contains((Object) 1, 2, null, 4));
+    }
+
+    @Test
+    public void shouldPassWholeBodyWhenNotFanOut() throws Exception {
+        final List<Object> bodies = new ArrayList<Object>();
+        fanOutProcessor = new FanOutProcessor(new Processor() {
+
+            @Override
+            public void process(Exchange exchange) throws Exception {
+                bodies.add(exchange.getIn().getBody());
+            }
+        }, 2);
+        fanOutProcessor.start();
+
+        List<Integer> payload = Arrays.asList(1, 2, 3);
+        Exchange exchange = new DefaultExchange(camelContext);
+        exchange.getIn().setBody(payload);
+        fanOutProcessor.process(exchange);
+
+        assertThat(bodies, contains((Object) payload));
+    }
+
+    private Exchange newFanOutExchange(List<Integer> items) {
+        Exchange exchange = new DefaultExchange(camelContext);
+        exchange.setProperty(SpringRemotingHttpBinding.FAN_OUT, true);
+        exchange.getIn().setBody(items);
+
+        return exchange;
+    }
+
+    private static Processor failOn(final int failingItem, final Exception exception) {
+        return new Processor() {
+
+            @Override
+            public void process(Exchange exchange) throws Exception {
+                if (exchange.getIn().getBody(Integer.class) == failingItem) {
+                    throw exception;
+                }
+            }
+        };
+    }
+}
@@ -0,0 +1,171 @@
+/*
+ * Copyright 2015 yihtserns.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.yihtserns.test.camel.spring.remoting;
+
+import com.github.yihtserns.test.camel.spring.remoting.testutil.Request;
+import com.github.yihtserns.test.camel.spring.remoting.testutil.Response;
+import java.util.Arrays;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.apache.camel.Exchange;
+import org.apache.camel.Processor;
+import org.apache.camel.builder.RouteBuilder;
+import org.apache.camel.impl.DefaultCamelContext;
+import org.apache.camel.impl.SimpleRegistry;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.remoting.httpinvoker.HttpInvokerProxyFactoryBean;
+import static org.hamcrest.Matchers.*;
+import static org.hamcrest.MatcherAssert.assertThat;
+
+/**
+ * @author yihtserns
+ */
+public class HedgingHttpInvokerRequestExecutorTest {
+
+    private static final String FAST_URL = "http://localhost:8088/trigger";
+    private static final String SLOW_URL = "http://localhost:8089/trigger";
+    private static final long SLOW_DELAY_MILLIS = 2000;
+    private SimpleRegistry registry = new SimpleRegistry();
+    private DefaultCamelContext camelContext = new DefaultCamelContext(registry);
+    private AtomicInteger receivedCount = new AtomicInteger();
+    private volatile boolean slow = false;
+    private HedgingHttpInvokerRequestExecutor executor = new HedgingHttpInvokerRequestExecutor(
+            HedgedService.class,
+            new LoadBalancingHttpInvokerRequestExecutor(Arrays.asList(SLOW_URL, FAST_URL)));
+
+    @Before
+    public void startRoutes() throws Exception {
+        registry.put("springRemotingBinding", SpringRemotingHttpBinding.forServiceInterface(HedgedService.class));
+        addRoute(FAST_URL, false);
+        addRoute(SLOW_URL, true);
+        camelContext.start();
+    }
+
+    @After
+    public void stopCamelContext() throws Exception {
+        executor.destroy();
+        if (camelContext.isStarted()) {
+            camelContext.stop();
+        }
+    }
+
+    @Test
+    public void shouldAnswerIdempotentCallFromOtherEndpointWhenFirstIsSlow() throws Exception {
+        executor.setHedgeBudget(1);
+        HedgedService service = serviceUsing(executor);
+        warmUp(service);
+
+        slow = true;
+        for (int i = 0; i < 4; i++) {
+            long start = System.nanoTime();
+            Response response = service.lookup(new Request("Hi!"));
+            long elapsedMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+
+            assertThat(response.message, is(FAST_URL));
+            assertThat(elapsedMillis, is(lessThan(SLOW_DELAY_MILLIS / 2)));
+        }
+        assertThat(receivedCount.get(), is(greaterThan(4)));
+    }
+
+    @Test
+    public void shouldNotHedgeNonIdempotentCall() throws Exception {
+        executor.setHedgeBudget(1);
+        HedgedService service = serviceUsing(executor);
+        warmUp(service);
+
+        slow = true;
+        service.update(new Request("Hi!"));
+        service.update(new Request("Hi!"));
+        assertThat(receivedCount.get(), is(2));
+    }
+
+    @Test
+    public void shouldNotHedgeWhenOutOfBudget() throws Exception {
+        executor.setHedgeBudget(0);
+        HedgedService service = serviceUsing(executor);
+        warmUp(service);
+
+        slow = true;
+        service.lookup(new Request("Hi!"));
+        service.lookup(new Request("Hi!"));
+        assertThat(receivedCount.get(), is(2));
+    }
+
+    @Test
+    public void shouldCallOnCallingThreadWithoutHedgeWhenPoolIsFull() throws Exception {
+        ExecutorService fullExecutorService = Executors.newSingleThreadExecutor();
+        fullExecutorService.shutdown();
+        executor.setExecutorService(fullExecutorService);
+        executor.setHedgeBudget(1);
+        HedgedService service = serviceUsing(executor);
+        warmUp(service);
+
+        slow = true;
+        Response response = service.lookup(new Request("Hi!"));
+        assertThat(response, is(notNullValue()));
+        assertThat(receivedCount.get(), is(1));
+    }
+
+    private void warmUp(HedgedService service) {
+        for (int i = 0; i < 30; i++) {
+            service.lookup(new Request("Warm up"));
+        }
+        receivedCount.set(0);
+    }
+
+    private void addRoute(final String url, final boolean canBeSlow) throws Exception {
+        camelContext.addRoutes(new RouteBuilder() {
+
+            @Override
+            public void configure() throws Exception {
+                from("jetty:" + url + "?httpBindingRef=#springRemotingBinding")
+                        .process(new Processor() {
+
+                            @Override
+                            public void process(Exchange exchange) throws Exception {
+                                receivedCount.incrementAndGet();
+                                if (canBeSlow && slow) {
+                                    Thread.sleep(SLOW_DELAY_MILLIS);
+                                }
+                                exchange.getIn().setBody(new Response(url));
+                            }
+                        });
+            }
+        });
+    }
+
+    private static HedgedService serviceUsing(HedgingHttpInvokerRequestExecutor executor) {
+        HttpInvokerProxyFactoryBean factoryBean = new HttpInvokerProxyFactoryBean();
+        factoryBean.setServiceInterface(HedgedService.class);
+        factoryBean.setServiceUrl(FAST_URL);
+        factoryBean.setHttpInvokerRequestExecutor(executor);
+        factoryBean.afterPropertiesSet();
+
+        return (HedgedService) factoryBean.getObject();
+    }
+
+    public interface HedgedService {
+
+        @Idempotent
+        Response lookup(Request req);
+
+        Response update(Request req);
+    }
+}
@@ -0,0 +1,149 @@
+/*
+ * Copyright 2015 yihtserns.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.yihtserns.test.camel.spring.remoting;
+
+import com.github.yihtserns.test.camel.spring.remoting.testutil.Request;
+import com.github.yihtserns.test.camel.spring.remoting.testutil.Response;
+import com.github.yihtserns.test.camel.spring.remoting.testutil.Service;
+import java.util.ArrayList;
+import java.util.List;
+import org.apache.camel.Exchange;
+import org.apache.camel.Processor;
+import org.apache.camel.builder.RouteBuilder;
+import org.apache.camel.component.mock.MockEndpoint;
+import org.apache.camel.impl.DefaultCamelContext;
+import org.apache.camel.impl.SimpleRegistry;
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.ExpectedException;
+import org.springframework.remoting.RemoteAccessException;
+import org.springframework.remoting.httpinvoker.HttpInvokerProxyFactoryBean;
+import static org.hamcrest.Matchers.*;
+import static org.hamcrest.MatcherAssert.assertThat;
+
+/**
+ * @author yihtserns
+ */
+public class InProcessHttpInvokerRequestExecutorTest {
+
+    private static final String URL = "http://localhost:8088/trigger";
+    @Rule
+    public ExpectedException thrown = ExpectedException.none();
+    private SimpleRegistry registry = new SimpleRegistry();
+    private DefaultCamelContext camelContext = new DefaultCamelContext(registry);
+    private InProcessHttpInvokerRequestExecutor executor = new InProcessHttpInvokerRequestExecutor(camelContext);
+    private List<Request> receivedRequests = new ArrayList<Request>();
+
+    @After
+    public void stopCamelContext() throws Exception {
+        if (camelContext.isStarted()) {
+            camelContext.stop();
+        }
+    }
+
+    @Test
+    public void canServeWithoutGoingThroughHttp() throws Exception {
+        startRoute();
+
+        Response response = serviceFor(URL).service(new Request("Hi!"));
+        assertThat(response, is(notNullValue()));
+        assertThat(response.message, is("Hi! Bye!"));
+    }
+
+    @Test
+    public void canGetHeader() throws Exception {
+        startRoute();
+
+        Response response = serviceFor(URL).service(1000, new Request("Timeout: "));
+        assertThat(response.message, is("Timeout: 1000"));
+    }
+
+    @Test
+    public void noIssueWhenServiceReturnTypeIsVoid() throws Exception {
+        startRoute();
+        MockEndpoint mock = camelContext.getEndpoint("mock:mock", MockEndpoint.class);
+
+        mock.expectedMessageCount(1);
+        serviceFor(URL).send(new Request("Hi!"));
+        mock.assertIsSatisfied(1000);
+    }
+
+    @Test
+    public void shouldPassArgumentsByReferenceByDefault() throws Exception {
+        startRoute();
+
+        Request request = new Request("Hi!");
+        serviceFor(URL).service(request);
+        assertThat(receivedRequests.get(0), is(sameInstance(request)));
+    }
+
+    @Test
+    public void shouldPassCopyOfArgumentsWhenDefensiveCopyIsEnabled() throws Exception {
+        startRoute();
+        executor.setDefensiveCopy(true);
+
+        Request request = new Request("Hi!");
+        Response response = serviceFor(URL).service(request);
+        assertThat(receivedRequests.get(0), is(not(sameInstance(request))));
+        assertThat(receivedRequests.get(0).message, is("Hi!"));
+        assertThat(response.message, is("Hi! Bye!"));
+    }
+
+    @Test
+    public void shouldThrowWhenNoRouteConsumesFromServiceUrl() throws Exception {
+        startRoute();
+
+        thrown.expect(RemoteAccessException.class);
+        serviceFor("http://localhost:8088/unknown").service(new Request("Hi!"));
+    }
+
+    private void startRoute() throws Exception {
+        registry.put("springRemotingBinding", SpringRemotingHttpBinding.forServiceInterface(Service.class));
+        camelContext.addRoutes(new RouteBuilder() {
+
+            @Override
+            public void configure() throws Exception {
+                from("jetty:" + URL + "?httpBindingRef=#springRemotingBinding")
+                        .process(new Processor() {
+
+                            @Override
+                            public void process(Exchange exchange) throws Exception {
+                                Request request = exchange.getIn().getMandatoryBody(Request.class);
+                                receivedRequests.add(request);
+
+                                Long timeout = exchange.getIn().getHeader("timeout", Long.class);
+                                String suffix = timeout != null ? String.valueOf(timeout) : " Bye!";
+
+                                exchange.getIn().setBody(new Response(request.message + suffix));
+                            }
+                        })
+                        .to("mock:mock");
+            }
+        });
+        camelContext.start();
+    }
+
+    private Service serviceFor(String url) {
+        HttpInvokerProxyFactoryBean factoryBean = new HttpInvokerProxyFactoryBean();
+        factoryBean.setServiceInterface(Service.class);
+        factoryBean.setServiceUrl(url);
+        factoryBean.setHttpInvokerRequestExecutor(executor);
+        factoryBean.afterPropertiesSet();
+
+        return (Service) factoryBean.getObject();
+    }
+}
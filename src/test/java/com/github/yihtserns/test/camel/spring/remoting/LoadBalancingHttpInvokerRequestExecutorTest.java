@@ -0,0 +1,247 @@
+/*
+ * Copyright 2015 yihtserns.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.yihtserns.test.camel.spring.remoting;
+
+import com.github.yihtserns.test.camel.spring.remoting.LoadBalancingHttpInvokerRequestExecutor.Strategy;
+import com.github.yihtserns.test.camel.spring.remoting.testutil.Request;
+import com.github.yihtserns.test.camel.spring.remoting.testutil.Response;
+import com.github.yihtserns.test.camel.spring.remoting.testutil.Service;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.apache.camel.Exchange;
+import org.apache.camel.Processor;
+import org.apache.camel.builder.RouteBuilder;
+import org.apache.camel.impl.DefaultCamelContext;
+import org.apache.camel.impl.SimpleRegistry;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.remoting.RemoteAccessException;
+import org.springframework.remoting.httpinvoker.HttpInvokerClientConfiguration;
+import org.springframework.remoting.httpinvoker.HttpInvokerProxyFactoryBean;
+import org.springframework.remoting.support.RemoteInvocationResult;
+import static org.hamcrest.Matchers.*;
+import static org.hamcrest.MatcherAssert.assertThat;
+
+/**
+ * @author yihtserns
+ */
+public class LoadBalancingHttpInvokerRequestExecutorTest {
+
+    private static final String URL_1 = "http://localhost:8088/trigger";
+    private static final String URL_2 = "http://localhost:8089/trigger";
+    private static final String URL_3 = "http://localhost:8090/trigger";
+    private static final String POISON = "Poison";
+    private SimpleRegistry registry = new SimpleRegistry();
+    private DefaultCamelContext camelContext = new DefaultCamelContext(registry);
+
+    @Before
+    public void registerBinding() {
+        registry.put("springRemotingBinding", SpringRemotingHttpBinding.forServiceInterface(Service.class));
+    }
+
+    @After
+    public void stopCamelContext() throws Exception {
+        if (camelContext.isStarted()) {
+            camelContext.stop();
+        }
+    }
+
+    @Test
+    public void shouldSpreadInvocationsAcrossAllEndpoints() throws Exception {
+        addRoute(URL_1, 0);
+        addRoute(URL_2, 0);
+        addRoute(URL_3, 0);
+        camelContext.start();
+
+        LoadBalancingHttpInvokerRequestExecutor executor = new LoadBalancingHttpInvokerRequestExecutor(
+                Arrays.asList(URL_1, URL_2, URL_3));
+        Map<String, Integer> url2Count = callRepeatedly(serviceUsing(executor), 30);
+
+        assertThat(url2Count.keySet(), containsInAnyOrder(URL_1, URL_2, URL_3));
+    }
+
+    @Test
+    public void shouldRouteAroundEndpointThatCannotBeConnectedTo() throws Exception {
+        addRoute(URL_1, 0);
+        addRoute(URL_2, 0);
+        camelContext.start();
+
+        CountingExecutor delegate = new CountingExecutor();
+        LoadBalancingHttpInvokerRequestExecutor executor = new LoadBalancingHttpInvokerRequestExecutor(
+                Arrays.asList(URL_1, URL_2, URL_3));
+        executor.setDelegate(delegate);
+        executor.setConsecutiveFailuresToEject(2);
+        executor.setEjectionMillis(60000);
+        Map<String, Integer> url2Count = callRepeatedly(serviceUsing(executor), 30);
+
+        assertThat(url2Count.keySet(), containsInAnyOrder(URL_1, URL_2));
+        assertThat(delegate.callCount(URL_3), is(2));
+    }
+
+    @Test
+    public void shouldEjectEndpointThatHasNoConsumerForService() throws Exception {
+        addRoute(URL_1, 0);
+        addRoute(URL_2, 0);
+        addRoute("http://localhost:8090/other", 0);
+        camelContext.start();
+
+        CountingExecutor delegate = new CountingExecutor();
+        LoadBalancingHttpInvokerRequestExecutor executor = new LoadBalancingHttpInvokerRequestExecutor(
+                Arrays.asList(URL_1, URL_2, URL_3));
+        executor.setDelegate(delegate);
+        executor.setConsecutiveFailuresToEject(2);
+        executor.setEjectionMillis(60000);
+        Service service = serviceUsing(executor);
+        int failureCount = 0;
+        for (int i = 0; i < 30; i++) {
+            try {
+                service.service(new Request("Hi!"));
+            } catch (RemoteAccessException ex) {
+                failureCount++;
+            }
+        }
+
+        assertThat(failureCount, is(2));
+        assertThat(delegate.callCount(URL_3), is(2));
+    }
+
+    @Test
+    public void shouldPutEndpointBackIntoRotationOnceItRecovers() throws Exception {
+        addRoute(URL_1, 0);
+        camelContext.start();
+
+        LoadBalancingHttpInvokerRequestExecutor executor = new LoadBalancingHttpInvokerRequestExecutor(
+                Arrays.asList(URL_1, URL_2));
+        executor.setEjectionMillis(50);
+        Service service = serviceUsing(executor);
+        assertThat(callRepeatedly(service, 10).keySet(), contains(URL_1));
+
+        addRoute(URL_2, 0);
+        Thread.sleep(200);
+        assertThat(callRepeatedly(service, 10).keySet(), containsInAnyOrder(URL_1, URL_2));
+    }
+
+    @Test
+    public void shouldNotEjectEndpointWhenRouteFailsForOneRequest() throws Exception {
+        addRoute(URL_1, 0);
+        addRoute(URL_2, 0);
+        camelContext.start();
+
+        LoadBalancingHttpInvokerRequestExecutor executor = new LoadBalancingHttpInvokerRequestExecutor(
+                Arrays.asList(URL_1, URL_2));
+        executor.setConsecutiveFailuresToEject(1);
+        executor.setEjectionMillis(60000);
+        Service service = serviceUsing(executor);
+        int failureCount = 0;
+        for (int i = 0; i < 10; i++) {
+            try {
+                service.service(new Request(POISON));
+            } catch (RemoteAccessException ex) {
+                failureCount++;
+            }
+        }
+        assertThat(failureCount, is(10));
+
+        assertThat(callRepeatedly(service, 10).keySet(), containsInAnyOrder(URL_1, URL_2));
+    }
+
+    @Test
+    public void latencyWeightedShouldPreferFasterEndpoint() throws Exception {
+        addRoute(URL_1, 0);
+        addRoute(URL_2, 200);
+        camelContext.start();
+
+        LoadBalancingHttpInvokerRequestExecutor executor = new LoadBalancingHttpInvokerRequestExecutor(
+                Arrays.asList(URL_1, URL_2));
+        executor.setStrategy(Strategy.LATENCY_WEIGHTED);
+        Service service = serviceUsing(executor);
+        callRepeatedly(service, 10);
+        Map<String, Integer> url2Count = callRepeatedly(service, 40);
+
+        assertThat(url2Count.get(URL_1), is(greaterThan(20)));
+    }
+
+    private void addRoute(final String url, final long delayMillis) throws Exception {
+        camelContext.addRoutes(new RouteBuilder() {
+
+            @Override
+            public void configure() throws Exception {
+                from("jetty:" + url + "?httpBindingRef=#springRemotingBinding")
+                        .process(new Processor() {
+
+                            @Override
+                            public void process(Exchange exchange) throws Exception {
+                                if (POISON.equals(exchange.getIn().getBody(Request.class).message)) {
+                                    throw new IllegalArgumentException("Cannot handle " + POISON);
+                                }
+                                Thread.sleep(delayMillis);
+                                exchange.getIn().setBody(new Response(url));
+                            }
+                        });
+            }
+        });
+    }
+
+    private static Map<String, Integer> callRepeatedly(Service service, int times) {
+        Map<String, Integer> url2Count = new HashMap<String, Integer>();
+        for (int i = 0; i < times; i++) {
+            String url = service.service(new Request("Hi!")).message;
+
+            Integer count = url2Count.get(url);
+            url2Count.put(url, count == null ? 1 : count + 1);
+        }
+        return url2Count;
+    }
+
+    private static final class CountingExecutor
+            extends LoadBalancingHttpInvokerRequestExecutor.StatusReportingHttpInvokerRequestExecutor {
+
+        private final ConcurrentMap<String, AtomicInteger> url2CallCount = new ConcurrentHashMap<String, AtomicInteger>();
+
+        @Override
+        protected RemoteInvocationResult doExecuteRequest(
+                HttpInvokerClientConfiguration config,
+                ByteArrayOutputStream baos) throws IOException, ClassNotFoundException {
+            url2CallCount.putIfAbsent(config.getServiceUrl(), new AtomicInteger());
+            url2CallCount.get(config.getServiceUrl()).incrementAndGet();
+
+            return super.doExecuteRequest(config, baos);
+        }
+
+        public int callCount(String url) {
+            AtomicInteger callCount = url2CallCount.get(url);
+
+            return callCount == null ? 0 : callCount.get();
+        }
+    }
+
+    private static Service serviceUsing(LoadBalancingHttpInvokerRequestExecutor executor) {
+        HttpInvokerProxyFactoryBean factoryBean = new HttpInvokerProxyFactoryBean();
+        factoryBean.setServiceInterface(Service.class);
+        factoryBean.setServiceUrl(URL_1);
+        factoryBean.setHttpInvokerRequestExecutor(executor);
+        factoryBean.afterPropertiesSet();
+
+        return (Service) factoryBean.getObject();
+    }
+}
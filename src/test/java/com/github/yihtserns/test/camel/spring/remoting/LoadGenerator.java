@@ -0,0 +1,618 @@
+/*
+ * Copyright 2015 yihtserns.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.yihtserns.test.camel.spring.remoting;
+
+import com.github.yihtserns.test.camel.spring.remoting.testutil.Request;
+import com.github.yihtserns.test.camel.spring.remoting.testutil.Response;
+import com.github.yihtserns.test.camel.spring.remoting.testutil.Service;
+import java.io.FileOutputStream;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import org.apache.camel.Exchange;
+import org.apache.camel.Processor;
+import org.apache.camel.builder.RouteBuilder;
+import org.apache.camel.impl.DefaultCamelContext;
+import org.apache.camel.impl.SimpleRegistry;
+import org.springframework.remoting.httpinvoker.HttpInvokerProxyFactoryBean;
+
+/**
+ * Starts a Camel Jetty route serving {@link Service} through {@link SpringRemotingHttpBinding}, drives it with
+ * {@link HttpInvokerProxyFactoryBean} clients, and reports throughput and latency percentiles as JSON.
+ * <p>
+ * In {@link Mode#OPEN_LOOP open loop} calls are due at a fixed rate regardless of how fast they are answered, and
+ * latency is measured from when a call was due, so a stalled server is charged for every call it held up. In
+ * {@link Mode#CLOSED_LOOP closed loop} each client thread makes its next call as soon as the previous one returns;
+ * the corrected percentiles then add the calls a stall kept each thread from making, taking the median latency as the
+ * expected interval between calls. Uncorrected percentiles are measured from when each call was actually sent.
+ * <p>
+ * To compare {@link #setVirtualThreads(boolean) virtual threads} with Jetty's threads for blocking routes, run both
+ * with a long processing delay and thousands of client threads, and compare throughput, {@code peakServerThreads}
+ * (platform threads at the peak, not counting client threads or those alive before the route started) and
+ * {@code peakHeapBytes} (sum of each heap pool's peak during the measured run).
+ * <p>
+ * Run {@link #main(String[])} with {@code mvn test-compile exec:java -Dexec.classpathScope=test
+ * -Dexec.mainClass=com.github.yihtserns.test.camel.spring.remoting.LoadGenerator}, configured through the
+ * {@code loadgen.*} system properties listed there.
+ *
+ * @author yihtserns
+ */
+public class LoadGenerator {
+
+    private static final double[] PERCENTILES = {50, 90, 99, 99.9, 99.99};
+    private String serviceUrl = "http://localhost:8088/trigger";
+    private boolean inProcess = false;
+    private long processingDelayMillis = 0;
+    private boolean virtualThreads = false;
+    private int clientThreads = 4;
+    private Mode mode = Mode.CLOSED_LOOP;
+    private int callsPerSecond = 1000;
+    private long warmUpMillis = 2000;
+    private long durationMillis = 10000;
+    private Map<ServiceMethod, Integer> callMix = new EnumMap<ServiceMethod, Integer>(ServiceMethod.class);
+    private int[] payloadSizes = {16};
+
+    public LoadGenerator() {
+        for (ServiceMethod serviceMethod : ServiceMethod.values()) {
+            callMix.put(serviceMethod, 1);
+        }
+    }
+
+    /**
+     * @param inProcess {@code true} to call the route through {@link InProcessHttpInvokerRequestExecutor} instead of
+     * over HTTP
+     */
+    public void setInProcess(boolean inProcess) {
+        this.inProcess = inProcess;
+    }
+
+    public void setServiceUrl(String serviceUrl) {
+        this.serviceUrl = serviceUrl;
+    }
+
+    /**
+     * @param processingDelayMillis how long the route sleeps for each call
+     */
+    public void setProcessingDelayMillis(long processingDelayMillis) {
+        this.processingDelayMillis = processingDelayMillis;
+    }
+
+    /**
+     * @param virtualThreads {@code true} to run the route through {@link VirtualThreadProcessor}
+     */
+    public void setVirtualThreads(boolean virtualThreads) {
+        this.virtualThreads = virtualThreads;
+    }
+
+    public void setClientThreads(int clientThreads) {
+        if (clientThreads < 1) {
+            throw new IllegalArgumentException("Client threads must be at least 1, but was " + clientThreads);
+        }
+        this.clientThreads = clientThreads;
+    }
+
+    public void setMode(Mode mode) {
+        this.mode = mode;
+    }
+
+    /**
+     * @param callsPerSecond arrival rate across all client threads, only used in {@link Mode#OPEN_LOOP open loop}
+     */
+    public void setCallsPerSecond(int callsPerSecond) {
+        if (callsPerSecond < 1) {
+            throw new IllegalArgumentException("Calls per second must be at least 1, but was " + callsPerSecond);
+        }
+        this.callsPerSecond = callsPerSecond;
+    }
+
+    /**
+     * @param warmUpMillis how long to make calls for before measuring
+     */
+    public void setWarmUpMillis(long warmUpMillis) {
+        this.warmUpMillis = warmUpMillis;
+    }
+
+    public void setDurationMillis(long durationMillis) {
+        this.durationMillis = durationMillis;
+    }
+
+    /**
+     * @param serviceMethod called in proportion to its {@code weight} among the weights of all methods; 0 to not call it
+     */
+    public void setCallWeight(ServiceMethod serviceMethod, int weight) {
+        if (weight < 0) {
+            throw new IllegalArgumentException("Weight of " + serviceMethod + " cannot be negative, but was " + weight);
+        }
+        callMix.put(serviceMethod, weight);
+    }
+
+    /**
+     * @param payloadSizes number of characters in the message of each request, one picked at random for each call
+     */
+    public void setPayloadSizes(int... payloadSizes) {
+        if (payloadSizes.length == 0) {
+            throw new IllegalArgumentException("At least one payload size is required");
+        }
+        this.payloadSizes = payloadSizes.clone();
+    }
+
+    /**
+     * @return report of the measured calls, as JSON
+     */
+    public String run() throws Exception {
+        SimpleRegistry registry = new SimpleRegistry();
+        DefaultCamelContext camelContext = new DefaultCamelContext(registry);
+        registry.put("springRemotingBinding", SpringRemotingHttpBinding.forServiceInterface(Service.class));
+        Processor route = new Processor() {
+
+            @Override
+            public void process(Exchange exchange) throws Exception {
+                if (processingDelayMillis > 0) {
+                    Thread.sleep(processingDelayMillis);
+                }
+                Request request = exchange.getIn().getBody(Request.class);
+                exchange.getIn().setBody(new Response(request.message));
+            }
+        };
+        final Processor processor = virtualThreads ? new VirtualThreadProcessor(route) : route;
+        camelContext.addRoutes(new RouteBuilder() {
+
+            @Override
+            public void configure() throws Exception {
+                from("jetty:" + serviceUrl + "?httpBindingRef=#springRemotingBinding")
+                        .process(processor);
+            }
+        });
+        ThreadMXBean threadMXBean = ManagementFactory.getThreadMXBean();
+        int threadCountBeforeRoute = threadMXBean.getThreadCount();
+        camelContext.start();
+        try {
+            HttpInvokerProxyFactoryBean factoryBean = new HttpInvokerProxyFactoryBean();
+            factoryBean.setServiceInterface(Service.class);
+            factoryBean.setServiceUrl(serviceUrl);
+            if (inProcess) {
+                factoryBean.setHttpInvokerRequestExecutor(new InProcessHttpInvokerRequestExecutor(camelContext));
+            }
+            factoryBean.afterPropertiesSet();
+            Service service = (Service) factoryBean.getObject();
+
+            if (warmUpMillis > 0) {
+                drive(service, warmUpMillis);
+            }
+            threadMXBean.resetPeakThreadCount();
+            for (MemoryPoolMXBean heapPool : heapPools()) {
+                heapPool.resetPeakUsage();
+            }
+            Result result = drive(service, durationMillis);
+            result.peakServerThreads = Math.max(
+                    threadMXBean.getPeakThreadCount() - clientThreads - threadCountBeforeRoute, 0);
+            for (MemoryPoolMXBean heapPool : heapPools()) {
+                result.peakHeapBytes += heapPool.getPeakUsage().getUsed();
+            }
+
+            return toReport(result);
+        } finally {
+            camelContext.stop();
+        }
+    }
+
+    private Result drive(final Service service, long millis) throws InterruptedException {
+        final ServiceMethod[] callPicks = toCallPicks();
+        final long intervalNanos = TimeUnit.SECONDS.toNanos(1) / callsPerSecond;
+        final long startNanos = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(10);
+        final long endNanos = startNanos + TimeUnit.MILLISECONDS.toNanos(millis);
+        final Result result = new Result();
+        final AtomicReference<Throwable> firstError = new AtomicReference<Throwable>();
+        List<Thread> clients = new ArrayList<Thread>(clientThreads);
+
+        for (int t = 0; t < clientThreads; t++) {
+            final int clientIndex = t;
+            Thread clientThread = new Thread(new Runnable() {
+
+                @Override
+                public void run() {
+                    Random random = new Random(clientIndex);
+                    LatencyRecorder sinceDue = new LatencyRecorder();
+                    LatencyRecorder sinceSent = new LatencyRecorder();
+                    long[] methodCounts = new long[ServiceMethod.values().length];
+                    long errors = 0;
+                    try {
+                        for (long arrival = clientIndex;; arrival += clientThreads) {
+                            long dueNanos;
+                            if (mode == Mode.OPEN_LOOP) {
+                                dueNanos = startNanos + arrival * intervalNanos;
+                                sleepUntil(dueNanos);
+                            } else {
+                                dueNanos = System.nanoTime();
+                            }
+                            if (dueNanos >= endNanos) {
+                                break;
+                            }
+
+                            ServiceMethod serviceMethod = callPicks[random.nextInt(callPicks.length)];
+                            Request request = newRequest(payloadSizes[random.nextInt(payloadSizes.length)]);
+                            long sentNanos = System.nanoTime();
+                            try {
+                                serviceMethod.call(service, request);
+                            } catch (RuntimeException ex) {
+                                firstError.compareAndSet(null, ex);
+                                errors++;
+                            }
+                            long returnedNanos = System.nanoTime();
+                            sinceDue.record(returnedNanos - dueNanos);
+                            sinceSent.record(returnedNanos - sentNanos);
+                            methodCounts[serviceMethod.ordinal()]++;
+                        }
+                    } catch (InterruptedException ex) {
+                        Thread.currentThread().interrupt();
+                    } finally {
+                        result.add(sinceDue, sinceSent, methodCounts, errors);
+                    }
+                }
+            }, "LoadGenerator-client-" + t);
+            clientThread.setDaemon(true);
+            clientThread.start();
+            clients.add(clientThread);
+        }
+        for (Thread client : clients) {
+            client.join();
+        }
+        result.elapsedNanos = System.nanoTime() - startNanos;
+        result.firstError = firstError.get();
+
+        return result;
+    }
+
+    private static List<MemoryPoolMXBean> heapPools() {
+        List<MemoryPoolMXBean> heapPools = new ArrayList<MemoryPoolMXBean>();
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() == MemoryType.HEAP && pool.isValid()) {
+                heapPools.add(pool);
+            }
+        }
+        return heapPools;
+    }
+
+    private ServiceMethod[] toCallPicks() {
+        int totalWeight = 0;
+        for (int weight : callMix.values()) {
+            totalWeight += weight;
+        }
+        if (totalWeight == 0) {
+            throw new IllegalStateException("At least one service method must have a call weight above 0");
+        }
+
+        ServiceMethod[] callPicks = new ServiceMethod[totalWeight];
+        int index = 0;
+        for (Entry<ServiceMethod, Integer> entry : callMix.entrySet()) {
+            for (int i = 0; i < entry.getValue(); i++) {
+                callPicks[index++] = entry.getKey();
+            }
+        }
+        return callPicks;
+    }
+
+    private String toReport(Result result) {
+        long[] uncorrected = result.sinceSent.toSortedArray();
+        long[] corrected = mode == Mode.OPEN_LOOP
+                ? result.sinceDue.toSortedArray()
+                : result.sinceDue.correctedForCoordinatedOmission(percentile(uncorrected, 50)).toSortedArray();
+
+        StringBuilder report = new StringBuilder("{\n");
+        appendField(report, "mode", '"' + mode.name() + '"');
+        appendField(report, "transport", inProcess ? "\"in-process\"" : "\"http\"");
+        appendField(report, "clientThreads", clientThreads);
+        appendField(report, "virtualThreads", virtualThreads);
+        appendField(report, "processingDelayMillis", processingDelayMillis);
+        if (mode == Mode.OPEN_LOOP) {
+            appendField(report, "targetCallsPerSecond", callsPerSecond);
+        }
+        appendField(report, "payloadSizes", Arrays.toString(payloadSizes));
+        appendField(report, "durationMillis", TimeUnit.NANOSECONDS.toMillis(result.elapsedNanos));
+        appendField(report, "calls", uncorrected.length);
+        appendField(report, "errors", result.errors);
+        if (result.firstError != null) {
+            appendField(report, "firstError", toJsonString(String.valueOf(result.firstError)));
+        }
+        appendField(report, "peakServerThreads", result.peakServerThreads);
+        appendField(report, "peakHeapBytes", result.peakHeapBytes);
+        appendField(report, "callsPerSecond",
+                String.format(Locale.ROOT, "%.1f", uncorrected.length * 1e9 / result.elapsedNanos));
+
+        StringBuilder methodCalls = new StringBuilder("{");
+        for (ServiceMethod serviceMethod : ServiceMethod.values()) {
+            if (methodCalls.length() > 1) {
+                methodCalls.append(", ");
+            }
+            methodCalls.append('"').append(serviceMethod).append("\": ").append(result.methodCounts[serviceMethod.ordinal()]);
+        }
+        appendField(report, "callsPerMethod", methodCalls.append('}'));
+
+        appendField(report, "latencyMicros", "{\n"
+                + "    \"corrected\": " + toPercentiles(corrected) + ",\n"
+                + "    \"uncorrected\": " + toPercentiles(uncorrected) + "\n"
+                + "  }");
+        report.setLength(report.length() - 2);
+
+        return report.append("\n}\n").toString();
+    }
+
+    private static void appendField(StringBuilder report, String name, Object value) {
+        report.append("  \"").append(name).append("\": ").append(value).append(",\n");
+    }
+
+    static String toJsonString(String value) {
+        StringBuilder json = new StringBuilder(value.length() + 2).append('"');
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            switch (c) {
+                case '"':
+                    json.append("\\\"");
+                    break;
+                case '\\':
+                    json.append("\\\\");
+                    break;
+                case '\n':
+                    json.append("\\n");
+                    break;
+                case '\r':
+                    json.append("\\r");
+                    break;
+                case '\t':
+                    json.append("\\t");
+                    break;
+                default:
+                    if (c < 0x20) {
+                        json.append(String.format(Locale.ROOT, "\\u%04x", (int) c));
+                    } else {
+                        json.append(c);
+                    }
+            }
+        }
+        return json.append('"').toString();
+    }
+
+    private static String toPercentiles(long[] sortedNanos) {
+        StringBuilder percentiles = new StringBuilder("{");
+        for (double percentile : PERCENTILES) {
+            percentiles.append("\"p").append(String.valueOf(percentile).replace(".0", "").replace('.', '_')).append("\": ")
+                    .append(toMicros(percentile(sortedNanos, percentile))).append(", ");
+        }
+        long max = sortedNanos.length == 0 ? 0 : sortedNanos[sortedNanos.length - 1];
+
+        return percentiles.append("\"max\": ").append(toMicros(max)).append('}').toString();
+    }
+
+    private static String toMicros(long nanos) {
+        return String.format(Locale.ROOT, "%.1f", nanos / 1000.0);
+    }
+
+    static long percentile(long[] sortedNanos, double percentile) {
+        if (sortedNanos.length == 0) {
+            return 0;
+        }
+        int index = (int) Math.ceil(percentile / 100 * sortedNanos.length) - 1;
+
+        return sortedNanos[Math.max(0, Math.min(index, sortedNanos.length - 1))];
+    }
+
+    private static Request newRequest(int payloadSize) {
+        char[] message = new char[payloadSize];
+        Arrays.fill(message, 'x');
+
+        return new Request(new String(message));
+    }
+
+    private static void sleepUntil(long dueNanos) throws InterruptedException {
+        long remainingNanos;
+        while ((remainingNanos = dueNanos - System.nanoTime()) > 0) {
+            TimeUnit.NANOSECONDS.sleep(remainingNanos);
+        }
+    }
+
+    /**
+     * Configured through system properties:
+     * <ul>
+     * <li>{@code loadgen.mode}: {@code CLOSED_LOOP} (default) or {@code OPEN_LOOP}</li>
+     * <li>{@code loadgen.threads}: number of client threads (default 4)</li>
+     * <li>{@code loadgen.rate}: calls per second in open loop (default 1000)</li>
+     * <li>{@code loadgen.delayMillis}: processing delay of the route (default 0)</li>
+     * <li>{@code loadgen.warmUpSeconds}, {@code loadgen.durationSeconds}: defaults 2 and 10</li>
+     * <li>{@code loadgen.mix}: weights of {@code service(Request)}, {@code service(long,Request)} and
+     * {@code send(Request)}, e.g. {@code 8,1,1} (default 1,1,1)</li>
+     * <li>{@code loadgen.payloadSizes}: message sizes, e.g. {@code 16,1024,65536} (default 16)</li>
+     * <li>{@code loadgen.transport}: {@code http} (default) or {@code in-process}</li>
+     * <li>{@code loadgen.virtualThreads}: {@code true} to run the route through {@link VirtualThreadProcessor}</li>
+     * <li>{@code loadgen.report}: file to write the report to, instead of standard output</li>
+     * </ul>
+     */
+    public static void main(String[] args) throws Exception {
+        LoadGenerator loadGenerator = new LoadGenerator();
+        loadGenerator.setMode(Mode.valueOf(System.getProperty("loadgen.mode", Mode.CLOSED_LOOP.name())));
+        loadGenerator.setClientThreads(Integer.getInteger("loadgen.threads", 4));
+        loadGenerator.setCallsPerSecond(Integer.getInteger("loadgen.rate", 1000));
+        loadGenerator.setProcessingDelayMillis(Long.getLong("loadgen.delayMillis", 0));
+        loadGenerator.setWarmUpMillis(TimeUnit.SECONDS.toMillis(Long.getLong("loadgen.warmUpSeconds", 2)));
+        loadGenerator.setDurationMillis(TimeUnit.SECONDS.toMillis(Long.getLong("loadgen.durationSeconds", 10)));
+        loadGenerator.setInProcess("in-process".equals(System.getProperty("loadgen.transport", "http")));
+        loadGenerator.setVirtualThreads(Boolean.getBoolean("loadgen.virtualThreads"));
+
+        String mix = System.getProperty("loadgen.mix", "1,1,1");
+        String[] weights = mix.split(",");
+        if (weights.length != ServiceMethod.values().length) {
+            throw new IllegalArgumentException("loadgen.mix must have one weight for each of "
+                    + Arrays.toString(ServiceMethod.values()) + ", but was " + mix);
+        }
+        for (ServiceMethod serviceMethod : ServiceMethod.values()) {
+            loadGenerator.setCallWeight(serviceMethod, Integer.parseInt(weights[serviceMethod.ordinal()].trim()));
+        }
+        String[] sizes = System.getProperty("loadgen.payloadSizes", "16").split(",");
+        int[] payloadSizes = new int[sizes.length];
+        for (int i = 0; i < sizes.length; i++) {
+            payloadSizes[i] = Integer.parseInt(sizes[i].trim());
+        }
+        loadGenerator.setPayloadSizes(payloadSizes);
+
+        String report = loadGenerator.run();
+        String reportFile = System.getProperty("loadgen.report");
+        if (reportFile == null) {
+            System.out.print(report);
+            return;
+        }
+        OutputStream out = new FileOutputStream(reportFile);
+        try {
+            out.write(report.getBytes("UTF-8"));
+        } finally {
+            out.close();
+        }
+    }
+
+    public enum Mode {
+
+        /**
+         * Calls are due at a fixed rate, whether or not earlier calls have returned.
+         */
+        OPEN_LOOP,
+        /**
+         * Each client thread makes its next call as soon as the previous one returns.
+         */
+        CLOSED_LOOP
+    }
+
+    public enum ServiceMethod {
+
+        SERVICE("service(Request)") {
+
+            @Override
+            void call(Service service, Request request) {
+                service.service(request);
+            }
+        },
+        SERVICE_WITH_TIMEOUT("service(long,Request)") {
+
+            @Override
+            void call(Service service, Request request) {
+                service.service(1000, request);
+            }
+        },
+        SEND("send(Request)") {
+
+            @Override
+            void call(Service service, Request request) {
+                service.send(request);
+            }
+        };
+        private final String signature;
+
+        private ServiceMethod(String signature) {
+            this.signature = signature;
+        }
+
+        abstract void call(Service service, Request request);
+
+        @Override
+        public String toString() {
+            return signature;
+        }
+    }
+
+    /**
+     * Growable array of latencies, recorded by a single thread.
+     */
+    static final class LatencyRecorder {
+
+        private long[] nanos = new long[1024];
+        private int size = 0;
+
+        public void record(long latencyNanos) {
+            if (size == nanos.length) {
+                nanos = Arrays.copyOf(nanos, size * 2);
+            }
+            nanos[size++] = latencyNanos;
+        }
+
+        public void addAll(LatencyRecorder other) {
+            for (int i = 0; i < other.size; i++) {
+                record(other.nanos[i]);
+            }
+        }
+
+        /**
+         * For each latency longer than {@code expectedIntervalNanos}, also records the latencies of the calls that
+         * would have been made in the meantime, each one interval shorter than the last.
+         */
+        public LatencyRecorder correctedForCoordinatedOmission(long expectedIntervalNanos) {
+            LatencyRecorder corrected = new LatencyRecorder();
+            for (int i = 0; i < size; i++) {
+                corrected.record(nanos[i]);
+                if (expectedIntervalNanos <= 0) {
+                    continue;
+                }
+                for (long missed = nanos[i] - expectedIntervalNanos; missed >= expectedIntervalNanos; missed -= expectedIntervalNanos) {
+                    corrected.record(missed);
+                }
+            }
+            return corrected;
+        }
+
+        public long[] toSortedArray() {
+            long[] sorted = Arrays.copyOf(nanos, size);
+            Arrays.sort(sorted);
+
+            return sorted;
+        }
+    }
+
+    private static final class Result {
+
+        /**
+         * From when each call was due; the same as {@link #sinceSent} in closed loop.
+         */
+        private final LatencyRecorder sinceDue = new LatencyRecorder();
+        private final LatencyRecorder sinceSent = new LatencyRecorder();
+        private final long[] methodCounts = new long[ServiceMethod.values().length];
+        private long errors = 0;
+        private long elapsedNanos;
+        private int peakServerThreads;
+        private long peakHeapBytes = 0;
+        private Throwable firstError;
+
+        public synchronized void add(
+                LatencyRecorder threadSinceDue,
+                LatencyRecorder threadSinceSent,
+                long[] threadMethodCounts,
+                long threadErrors) {
+            sinceDue.addAll(threadSinceDue);
+            sinceSent.addAll(threadSinceSent);
+            for (int i = 0; i < methodCounts.length; i++) {
+                methodCounts[i] += threadMethodCounts[i];
+            }
+            errors += threadErrors;
+        }
+    }
+}
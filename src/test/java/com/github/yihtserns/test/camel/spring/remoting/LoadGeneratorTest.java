@@ -0,0 +1,116 @@
+/*
+ * Copyright 2015 yihtserns.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.yihtserns.test.camel.spring.remoting;
+
+import com.github.yihtserns.test.camel.spring.remoting.LoadGenerator.LatencyRecorder;
+import com.github.yihtserns.test.camel.spring.remoting.LoadGenerator.Mode;
+import com.github.yihtserns.test.camel.spring.remoting.LoadGenerator.ServiceMethod;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import org.junit.Test;
+import static org.hamcrest.Matchers.*;
+import static org.hamcrest.MatcherAssert.assertThat;
+
+/**
+ * @author yihtserns
+ */
+public class LoadGeneratorTest {
+
+    private LoadGenerator loadGenerator = new LoadGenerator();
+
+    @Test
+    public void canDriveRouteInClosedLoop() throws Exception {
+        loadGenerator.setMode(Mode.CLOSED_LOOP);
+        loadGenerator.setClientThreads(2);
+        loadGenerator.setProcessingDelayMillis(5);
+        loadGenerator.setCallWeight(ServiceMethod.SEND, 0);
+        loadGenerator.setPayloadSizes(16, 1024);
+        loadGenerator.setWarmUpMillis(200);
+        loadGenerator.setDurationMillis(500);
+
+        String report = loadGenerator.run();
+        assertThat(report, containsString("\"mode\": \"CLOSED_LOOP\""));
+        assertThat(report, containsString("\"errors\": 0"));
+        assertThat(report, containsString("\"send(Request)\": 0"));
+        assertThat(numberIn(report, "calls"), is(greaterThan(0.0)));
+        assertThat(numberIn(report, "p50"), is(greaterThanOrEqualTo(5000.0)));
+    }
+
+    @Test
+    public void canDriveRouteInOpenLoop() throws Exception {
+        loadGenerator.setMode(Mode.OPEN_LOOP);
+        loadGenerator.setCallsPerSecond(200);
+        loadGenerator.setClientThreads(4);
+        loadGenerator.setWarmUpMillis(0);
+        loadGenerator.setDurationMillis(500);
+
+        String report = loadGenerator.run();
+        assertThat(report, containsString("\"mode\": \"OPEN_LOOP\""));
+        assertThat(report, containsString("\"errors\": 0"));
+        assertThat(numberIn(report, "calls"), is(100.0));
+    }
+
+    @Test
+    public void canCallRouteInProcess() throws Exception {
+        loadGenerator.setInProcess(true);
+        loadGenerator.setWarmUpMillis(0);
+        loadGenerator.setDurationMillis(200);
+
+        String report = loadGenerator.run();
+        assertThat(report, containsString("\"transport\": \"in-process\""));
+        assertThat(report, containsString("\"errors\": 0"));
+    }
+
+    @Test
+    public void canRunRouteOnVirtualThreads() throws Exception {
+        loadGenerator.setVirtualThreads(true);
+        loadGenerator.setClientThreads(50);
+        loadGenerator.setProcessingDelayMillis(20);
+        loadGenerator.setWarmUpMillis(0);
+        loadGenerator.setDurationMillis(300);
+
+        String report = loadGenerator.run();
+        assertThat(report, containsString("\"virtualThreads\": true"));
+        assertThat(report, containsString("\"errors\": 0"));
+        assertThat(numberIn(report, "peakServerThreads"), is(greaterThan(0.0)));
+        assertThat(numberIn(report, "peakHeapBytes"), is(greaterThan(0.0)));
+    }
+
+    @Test
+    public void shouldAddCallsMissedDuringStallWhenCorrectingForCoordinatedOmission() throws Exception {
+        LatencyRecorder latencies = new LatencyRecorder();
+        latencies.record(1);
+        latencies.record(1);
+        latencies.record(5);
+
+        long[] corrected = latencies.correctedForCoordinatedOmission(1).toSortedArray();
+        assertThat(corrected.length, is(7));
+        assertThat(LoadGenerator.percentile(corrected, 50), is(2L));
+        assertThat(LoadGenerator.percentile(latencies.toSortedArray(), 50), is(1L));
+    }
+
+    @Test
+    public void shouldEscapeStringsInReport() throws Exception {
+        assertThat(LoadGenerator.toJsonString("a\"b\\c\r\nd\te\u0001"), is("\"a\\\"b\\\\c\\r\\nd\\te\\u0001\""));
+    }
+
+    private static double numberIn(String report, String field) {
+        Matcher matcher = Pattern.compile("\"" + field + "\": ([0-9.]+)").matcher(report);
+        assertThat("No " + field + " in " + report, matcher.find(), is(true));
+
+        return Double.parseDouble(matcher.group(1));
+    }
+}
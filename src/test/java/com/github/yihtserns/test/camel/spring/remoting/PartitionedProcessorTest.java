@@ -0,0 +1,171 @@
+/*
+ * Copyright 2015 yihtserns.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.yihtserns.test.camel.spring.remoting;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import org.apache.camel.AsyncCallback;
+import org.apache.camel.CamelContext;
+import org.apache.camel.Exchange;
+import org.apache.camel.Processor;
+import org.apache.camel.impl.DefaultCamelContext;
+import org.apache.camel.impl.DefaultExchange;
+import org.junit.After;
+import org.junit.Test;
+import static org.hamcrest.Matchers.*;
+import static org.hamcrest.MatcherAssert.assertThat;
+
+/**
+ * @author yihtserns
+ */
+public class PartitionedProcessorTest {
+
+    private CamelContext camelContext = new DefaultCamelContext();
+    private PartitionedProcessor partitionedProcessor;
+
+    @After
+    public void stopProcessor() throws Exception {
+        if (partitionedProcessor != null) {
+            partitionedProcessor.stop();
+        }
+    }
+
+    @Test
+    public void shouldProcessSameKeyInOrderOnOneThread() throws Exception {
+        final List<String> processed = Collections.synchronizedList(new ArrayList<String>());
+        final Set<String> threadsOfKeyA = Collections.synchronizedSet(new HashSet<String>());
+        partitionedProcessor = new PartitionedProcessor(new Processor() {
+
+            @Override
+            public void process(Exchange exchange) throws Exception {
+                String body = exchange.getIn().getBody(String.class);
+                if (body.startsWith("A")) {
+                    threadsOfKeyA.add(Thread.currentThread().getName());
+                }
+                processed.add(body);
+            }
+        }, 4, 100);
+        partitionedProcessor.start();
+
+        CountDownLatch done = new CountDownLatch(100);
+        for (int i = 0; i < 50; i++) {
+            partitionedProcessor.process(newExchange("A", "A" + i), countDown(done));
+            partitionedProcessor.process(newExchange("B", "B" + i), countDown(done));
+        }
+        assertThat(done.await(5, TimeUnit.SECONDS), is(true));
+
+        List<String> processedOfKeyA = new ArrayList<String>();
+        for (String body : processed) {
+            if (body.startsWith("A")) {
+                processedOfKeyA.add(body);
+            }
+        }
+        for (int i = 0; i < 50; i++) {
+            assertThat(processedOfKeyA.get(i), is("A" + i));
+        }
+        assertThat(threadsOfKeyA, hasSize(1));
+    }
+
+    @Test
+    public void shouldProcessOnCallingThreadWhenThereIsNoPartitionKey() throws Exception {
+        final List<String> threads = new ArrayList<String>();
+        partitionedProcessor = new PartitionedProcessor(new Processor() {
+
+            @Override
+            public void process(Exchange exchange) throws Exception {
+                threads.add(Thread.currentThread().getName());
+            }
+        }, 4, 100);
+        partitionedProcessor.start();
+
+        partitionedProcessor.process(newExchange(null, "Payload"));
+        assertThat(threads, contains(Thread.currentThread().getName()));
+    }
+
+    @Test
+    public void shouldRejectWhenLaneIsFull() throws Exception {
+        final CountDownLatch release = new CountDownLatch(1);
+        partitionedProcessor = new PartitionedProcessor(new Processor() {
+
+            @Override
+            public void process(Exchange exchange) throws Exception {
+                release.await();
+            }
+        }, 2, 1);
+        partitionedProcessor.start();
+
+        CountDownLatch done = new CountDownLatch(3);
+        Exchange running = newExchange("A", "Running");
+        Exchange queued = newExchange("A", "Queued");
+        Exchange rejected = newExchange("A", "Rejected");
+        partitionedProcessor.process(running, countDown(done));
+        Thread.sleep(100);
+        partitionedProcessor.process(queued, countDown(done));
+        partitionedProcessor.process(rejected, countDown(done));
+
+        int lane = partitionedProcessor.laneOf("A");
+        assertThat(partitionedProcessor.getLaneDepth(lane), is(1));
+        assertThat(partitionedProcessor.getMaxLaneDepth(), is(1));
+        assertThat(rejected.getException(), is(instanceOf(RejectedExecutionException.class)));
+
+        release.countDown();
+        assertThat(done.await(5, TimeUnit.SECONDS), is(true));
+        assertThat(running.getException(), is(nullValue()));
+        assertThat(queued.getException(), is(nullValue()));
+        assertThat(partitionedProcessor.getTotalLaneDepth(), is(0));
+    }
+
+    @Test
+    public void shouldSetExceptionThrownByProcessorOnExchange() throws Exception {
+        final Exception exception = new Exception("Expected");
+        partitionedProcessor = new PartitionedProcessor(new Processor() {
+
+            @Override
+            public void process(Exchange exchange) throws Exception {
+                throw exception;
+            }
+        }, 2, 10);
+        partitionedProcessor.start();
+
+        Exchange exchange = newExchange("A", "Payload");
+        partitionedProcessor.process(exchange);
+        assertThat(exchange.getException(), is(sameInstance((Object) exception)));
+    }
+
+    private Exchange newExchange(Object partitionKey, Object body) {
+        Exchange exchange = new DefaultExchange(camelContext);
+        exchange.setProperty(SpringRemotingHttpBinding.PARTITION_KEY, partitionKey);
+        exchange.getIn().setBody(body);
+
+        return exchange;
+    }
+
+    private static AsyncCallback countDown(final CountDownLatch latch) {
+        return new AsyncCallback() {
+
+            @Override
+            public void done(boolean doneSync) {
+                latch.countDown();
+            }
+        };
+    }
+}
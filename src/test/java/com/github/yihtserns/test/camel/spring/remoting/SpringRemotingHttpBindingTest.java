@@ -18,6 +18,8 @@ package com.github.yihtserns.test.camel.spring.remoting;
 import java.lang.reflect.InvocationHandler;
 import java.lang.reflect.Method;
 import java.lang.reflect.Proxy;
+import java.util.Arrays;
+import java.util.List;
 import org.apache.camel.Body;
 import org.apache.camel.CamelContext;
 import org.apache.camel.Header;
@@ -269,6 +271,119 @@ public class SpringRemotingHttpBindingTest {
         }
     }
 
+    @Test
+    public void canExtractPartitionKey() throws Exception {
+        Class<PartitionedService> interfaceClass = PartitionedService.class;
+        SpringRemotingHttpBinding binding = SpringRemotingHttpBinding.forServiceInterface(interfaceClass);
+
+        Message message = newMessage();
+        PartitionedService service = proxyOf(interfaceClass, ConvertMethodCallToRemoteObject.setAsBodyOf(message));
+
+        Object id = "Expected ID";
+        Object payload = "Expected Payload";
+        service.service(1000, id, payload);
+
+        binding.unwrapRemoteInvocation(message);
+        assertThat(message.getBody(), is(payload));
+        assertThat(message.getHeader("id"), is(id));
+        assertThat(message.getExchange().getProperty(SpringRemotingHttpBinding.PARTITION_KEY), is(id));
+    }
+
+    @Test
+    public void shouldNotSetPartitionKeyWhenNoParamIsAnnotatedAsPartitionKey() throws Exception {
+        Class<MultiHeaderService> interfaceClass = MultiHeaderService.class;
+        SpringRemotingHttpBinding binding = SpringRemotingHttpBinding.forServiceInterface(interfaceClass);
+
+        Message message = newMessage();
+        MultiHeaderService service = proxyOf(interfaceClass, ConvertMethodCallToRemoteObject.setAsBodyOf(message));
+        service.service(1000, "ID", "Payload");
+
+        binding.unwrapRemoteInvocation(message);
+        assertThat(message.getExchange().getProperty(SpringRemotingHttpBinding.PARTITION_KEY), is(nullValue()));
+    }
+
+    @Test
+    public void shouldThrowWhenPartitionKeyIsNotAnnotatedAsHeader() throws Exception {
+        thrown.expect(IllegalArgumentException.class);
+        thrown.expectMessage("The parameter of method 'public abstract java.lang.Object com.github.yihtserns.test.camel.spring.remoting.SpringRemotingHttpBindingTest$NonHeaderPartitionKeyService.service(java.lang.Object,java.lang.Object)' annotated with @PartitionKey must also be annotated with @Header");
+        SpringRemotingHttpBinding.forServiceInterface(NonHeaderPartitionKeyService.class);
+    }
+
+    @Test
+    public void shouldThrowWhenMoreThanOneParamIsAnnotatedAsPartitionKey() throws Exception {
+        thrown.expect(IllegalArgumentException.class);
+        thrown.expectMessage("Only one of the parameters of method 'public abstract java.lang.Object com.github.yihtserns.test.camel.spring.remoting.SpringRemotingHttpBindingTest$MultiPartitionKeyService.service(java.lang.Object,java.lang.Object,java.lang.Object)' can be annotated with @PartitionKey");
+        SpringRemotingHttpBinding.forServiceInterface(MultiPartitionKeyService.class);
+    }
+
+    @Test
+    public void canMarkExchangeAsFanOut() throws Exception {
+        Class<FanOutService> interfaceClass = FanOutService.class;
+        SpringRemotingHttpBinding binding = SpringRemotingHttpBinding.forServiceInterface(interfaceClass);
+
+        {
+            Message message = newMessage();
+            FanOutService service = proxyOf(interfaceClass, ConvertMethodCallToRemoteObject.setAsBodyOf(message));
+
+            List<Object> payload = Arrays.<Object>asList("Item 1", "Item 2");
+            service.service(payload);
+
+            binding.unwrapRemoteInvocation(message);
+            assertThat(message.getBody(), is((Object) payload));
+            assertThat(message.getExchange().getProperty(SpringRemotingHttpBinding.FAN_OUT), is((Object) true));
+        }
+        {
+            Message message = newMessage();
+            FanOutService service = proxyOf(interfaceClass, ConvertMethodCallToRemoteObject.setAsBodyOf(message));
+
+            List<Object> payload = Arrays.<Object>asList("Item 1", "Item 2");
+            service.service("Not Payload", payload);
+
+            binding.unwrapRemoteInvocation(message);
+            assertThat(message.getBody(), is((Object) payload));
+            assertThat(message.getExchange().getProperty(SpringRemotingHttpBinding.FAN_OUT), is((Object) true));
+        }
+        {
+            Message message = newMessage();
+            FanOutService service = proxyOf(interfaceClass, ConvertMethodCallToRemoteObject.setAsBodyOf(message));
+            service.service((Object) Arrays.asList("Item 1", "Item 2"));
+
+            binding.unwrapRemoteInvocation(message);
+            assertThat(message.getExchange().getProperty(SpringRemotingHttpBinding.FAN_OUT), is(nullValue()));
+        }
+    }
+
+    @Test
+    public void shouldThrowWhenFanOutParamIsNotBody() throws Exception {
+        thrown.expect(IllegalArgumentException.class);
+        thrown.expectMessage("Only the body parameter of method 'public abstract java.lang.Object com.github.yihtserns.test.camel.spring.remoting.SpringRemotingHttpBindingTest$NonBodyFanOutService.service(java.util.List,java.lang.Object)' can be annotated with @FanOut");
+        SpringRemotingHttpBinding.forServiceInterface(NonBodyFanOutService.class);
+    }
+
+    @Test
+    public void shouldThrowWhenFanOutParamIsNotCollection() throws Exception {
+        thrown.expect(IllegalArgumentException.class);
+        thrown.expectMessage("The parameter of method 'public abstract java.lang.Object com.github.yihtserns.test.camel.spring.remoting.SpringRemotingHttpBindingTest$NonCollectionFanOutService.service(java.lang.Object)' annotated with @FanOut must be a Collection");
+        SpringRemotingHttpBinding.forServiceInterface(NonCollectionFanOutService.class);
+    }
+
+    @Test
+    public void canCopyTraceIdToExchange() throws Exception {
+        Class<OneParamService> interfaceClass = OneParamService.class;
+        SpringRemotingHttpBinding binding = SpringRemotingHttpBinding.forServiceInterface(interfaceClass);
+
+        Message message = newMessage();
+        OneParamService service = proxyOf(interfaceClass, ConvertMethodCallToRemoteObject.setAsBodyOf(message));
+        service.service("Payload");
+        ((RemoteInvocation) message.getBody()).addAttribute(SpringRemotingHttpBinding.TRACE_ID, "Expected Trace ID");
+
+        binding.unwrapRemoteInvocation(message);
+        assertThat(message.getExchange().getProperty(SpringRemotingHttpBinding.TRACE_ID), is((Object) "Expected Trace ID"));
+
+        binding.wrapInRemoteInvocationResult(message);
+        assertThat(message.getBody().getClass(), is((Object) RemoteInvocationResult.class));
+    }
+
     private static abstract class ConvertMethodCallToRemoteObject implements InvocationHandler {
 
         @Override
@@ -349,6 +464,40 @@ public class SpringRemotingHttpBindingTest {
         Object service(@Header("timeout") Object timeout, @Header("id") Object id, @Body Object payload);
     }
 
+    interface PartitionedService {
+
+        Object service(@Header("timeout") Object timeout, @Header("id") @PartitionKey Object id, @Body Object payload);
+    }
+
+    interface NonHeaderPartitionKeyService {
+
+        Object service(@PartitionKey Object id, @Body Object payload);
+    }
+
+    interface MultiPartitionKeyService {
+
+        Object service(@Header("a") @PartitionKey Object a, @Header("b") @PartitionKey Object b, @Body Object payload);
+    }
+
+    interface FanOutService {
+
+        Object service(@FanOut List<Object> payload);
+
+        Object service(Object param1, @Body @FanOut List<Object> payload);
+
+        Object service(Object payload);
+    }
+
+    interface NonBodyFanOutService {
+
+        Object service(@FanOut List<Object> param1, @Body Object payload);
+    }
+
+    interface NonCollectionFanOutService {
+
+        Object service(@FanOut Object payload);
+    }
+
     interface HasParentsService extends OneParamService, OneAnnotatedMultiParamService {
 
         Object handle(@Body Object param1, Object param2);
@@ -0,0 +1,281 @@
+/*
+ * Copyright 2015 yihtserns.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.yihtserns.test.camel.spring.remoting;
+
+import com.github.yihtserns.test.camel.spring.remoting.testutil.Request;
+import com.github.yihtserns.test.camel.spring.remoting.testutil.Response;
+import com.github.yihtserns.test.camel.spring.remoting.testutil.Service;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import org.aopalliance.intercept.MethodInvocation;
+import org.apache.camel.Exchange;
+import org.apache.camel.Processor;
+import org.apache.camel.builder.RouteBuilder;
+import org.apache.camel.impl.DefaultCamelContext;
+import org.apache.camel.impl.SimpleRegistry;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.remoting.httpinvoker.HttpInvokerClientConfiguration;
+import org.springframework.remoting.httpinvoker.HttpInvokerProxyFactoryBean;
+import org.springframework.remoting.support.DefaultRemoteInvocationFactory;
+import org.springframework.remoting.support.RemoteInvocation;
+import org.springframework.remoting.support.RemoteInvocationResult;
+import static org.hamcrest.Matchers.*;
+import static org.hamcrest.MatcherAssert.assertThat;
+
+/**
+ * @author yihtserns
+ */
+public class TimingHttpInvokerRequestExecutorTest {
+
+    private static final String SERVICE_URL = "http://localhost:8088/trigger";
+    private static final long ROUTE_DELAY_MILLIS = 50;
+    private SimpleRegistry registry = new SimpleRegistry();
+    private DefaultCamelContext camelContext = new DefaultCamelContext(registry);
+    private SpringRemotingHttpBinding binding = SpringRemotingHttpBinding.forServiceInterface(Service.class);
+    private volatile Serializable receivedTraceId;
+    private RecordingExecutor executor = new RecordingExecutor();
+
+    @Before
+    public void startRoute() throws Exception {
+        registry.put("springRemotingBinding", binding);
+        camelContext.addRoutes(new RouteBuilder() {
+
+            @Override
+            public void configure() throws Exception {
+                from("jetty:" + SERVICE_URL + "?httpBindingRef=#springRemotingBinding")
+                        .process(new Processor() {
+
+                            @Override
+                            public void process(Exchange exchange) throws Exception {
+                                receivedTraceId = exchange.getProperty(SpringRemotingHttpBinding.TRACE_ID, Serializable.class);
+                                Thread.sleep(ROUTE_DELAY_MILLIS);
+
+                                Request request = exchange.getIn().getBody(Request.class);
+                                exchange.getIn().setBody(new Response(request.message));
+                            }
+                        });
+            }
+        });
+        camelContext.start();
+    }
+
+    @After
+    public void stopCamelContext() throws Exception {
+        if (camelContext.isStarted()) {
+            camelContext.stop();
+        }
+    }
+
+    @Test
+    public void shouldReturnServerTimingForTraceIdOfCall() throws Exception {
+        binding.setServerTimingEnabled(true);
+
+        Response response = serviceUsing(executor).service(new Request("Hi!"));
+        assertThat(response.message, is("Hi!"));
+
+        assertThat(executor.traceId, is(notNullValue()));
+        assertThat(receivedTraceId, is(executor.traceId));
+        assertThat(executor.serverTiming, containsString("trace;desc=\"" + executor.traceId + "\""));
+        assertThat(executor.serverTiming, containsString("read;dur="));
+        assertThat(executor.serverTiming, containsString("deserialize;dur="));
+        assertThat(executor.serverTiming, containsString("dispatch;dur="));
+        assertThat(executor.serverTiming, containsString("serialize;dur="));
+
+        Matcher routeTiming = Pattern.compile("route;dur=([0-9.]+)").matcher(executor.serverTiming);
+        assertThat(routeTiming.find(), is(true));
+        double routeMillis = Double.parseDouble(routeTiming.group(1));
+        assertThat(routeMillis, is(greaterThanOrEqualTo((double) ROUTE_DELAY_MILLIS)));
+        assertThat(TimeUnit.NANOSECONDS.toMillis(executor.clientNanos), is(greaterThanOrEqualTo((long) routeMillis)));
+    }
+
+    @Test
+    public void shouldLeaveUnsafeTraceIdOutOfServerTiming() throws Exception {
+        binding.setServerTimingEnabled(true);
+        final String unsafeTraceId = "trace\\\"\r\nSet-Cookie: x=y";
+
+        HttpInvokerProxyFactoryBean factoryBean = new HttpInvokerProxyFactoryBean();
+        factoryBean.setServiceInterface(Service.class);
+        factoryBean.setServiceUrl(SERVICE_URL);
+        factoryBean.setHttpInvokerRequestExecutor(executor);
+        factoryBean.setRemoteInvocationFactory(new DefaultRemoteInvocationFactory() {
+
+            @Override
+            public RemoteInvocation createRemoteInvocation(MethodInvocation methodInvocation) {
+                RemoteInvocation invocation = super.createRemoteInvocation(methodInvocation);
+                invocation.addAttribute(SpringRemotingHttpBinding.TRACE_ID, unsafeTraceId);
+
+                return invocation;
+            }
+        });
+        factoryBean.afterPropertiesSet();
+        ((Service) factoryBean.getObject()).service(new Request("Hi!"));
+
+        assertThat(receivedTraceId, is((Object) unsafeTraceId));
+        assertThat(executor.serverTiming, containsString("route;dur="));
+        assertThat(executor.serverTiming, not(containsString("trace")));
+    }
+
+    @Test
+    public void canSendSameInvocationFromSeveralThreadsAtOnce() throws Exception {
+        final int callerCount = 2;
+        final RemoteInvocation invocation = new RendezvousRemoteInvocation(callerCount);
+        final HttpInvokerClientConfiguration config = new HttpInvokerClientConfiguration() {
+
+            @Override
+            public String getServiceUrl() {
+                return SERVICE_URL;
+            }
+
+            @Override
+            public String getCodebaseUrl() {
+                return null;
+            }
+        };
+        final TimingHttpInvokerRequestExecutor executor = new TimingHttpInvokerRequestExecutor();
+
+        final CountDownLatch start = new CountDownLatch(1);
+        final List<Object> results = Collections.synchronizedList(new ArrayList<Object>());
+        List<Thread> callers = new ArrayList<Thread>();
+        for (int i = 0; i < callerCount; i++) {
+            Thread caller = new Thread() {
+
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                        results.add(executor.executeRequest(config, invocation).getValue());
+                    } catch (Exception ex) {
+                        results.add(ex);
+                    }
+                }
+            };
+            caller.start();
+            callers.add(caller);
+        }
+        start.countDown();
+        for (Thread caller : callers) {
+            caller.join();
+        }
+
+        assertThat(results, hasSize(callerCount));
+        assertThat(results, everyItem(instanceOf(Response.class)));
+    }
+
+    @Test
+    public void shouldNotReturnServerTimingByDefault() throws Exception {
+        serviceUsing(executor).service(new Request("Hi!"));
+
+        assertThat(executor.traceId, is(notNullValue()));
+        assertThat(executor.serverTiming, is(nullValue()));
+        assertThat(executor.result.getClass(), is((Object) RemoteInvocationResult.class));
+    }
+
+    @Test
+    public void canReturnTimingsInResult() throws Exception {
+        binding.setTimingsInResult(true);
+
+        Response response = serviceUsing(executor).service(new Request("Hi!"));
+        assertThat(response.message, is("Hi!"));
+
+        TimedRemoteInvocationResult result = (TimedRemoteInvocationResult) executor.result;
+        assertThat(result.getTraceId(), is(executor.traceId));
+        assertThat(result.getTimings().keySet(), contains("read", "deserialize", "dispatch", "route"));
+        assertThat(result.getTimings().get("route"), is(greaterThanOrEqualTo(TimeUnit.MILLISECONDS.toNanos(ROUTE_DELAY_MILLIS))));
+    }
+
+    /**
+     * Holds every caller that looks up the trace id until all of them have, or until it is clear that they cannot,
+     * so that callers that do not coordinate all find it missing and add their own.
+     */
+    private static final class RendezvousRemoteInvocation extends RemoteInvocation {
+
+        private final transient CyclicBarrier barrier;
+
+        private RendezvousRemoteInvocation(int callerCount) {
+            super("service", new Class<?>[]{Request.class}, new Object[]{new Request("Hi!")});
+            this.barrier = new CyclicBarrier(callerCount);
+        }
+
+        @Override
+        public Serializable getAttribute(String key) {
+            Serializable value = super.getAttribute(key);
+            if (barrier != null) {
+                try {
+                    barrier.await(200, TimeUnit.MILLISECONDS);
+                } catch (Exception ex) {
+                    // Another caller is holding the invocation, or already gave up waiting
+                }
+            }
+            return value;
+        }
+
+        @Override
+        public synchronized void addAttribute(String key, Serializable value) throws IllegalStateException {
+            super.addAttribute(key, value);
+        }
+    }
+
+    private static Service serviceUsing(TimingHttpInvokerRequestExecutor executor) {
+        HttpInvokerProxyFactoryBean factoryBean = new HttpInvokerProxyFactoryBean();
+        factoryBean.setServiceInterface(Service.class);
+        factoryBean.setServiceUrl(SERVICE_URL);
+        factoryBean.setHttpInvokerRequestExecutor(executor);
+        factoryBean.afterPropertiesSet();
+
+        return (Service) factoryBean.getObject();
+    }
+
+    private static final class RecordingExecutor extends TimingHttpInvokerRequestExecutor {
+
+        private RemoteInvocationResult result;
+        private Serializable traceId;
+        private long clientNanos;
+        private String serverTiming;
+
+        @Override
+        protected RemoteInvocationResult doExecuteRequest(
+                HttpInvokerClientConfiguration config,
+                ByteArrayOutputStream baos) throws IOException, ClassNotFoundException {
+            result = super.doExecuteRequest(config, baos);
+
+            return result;
+        }
+
+        @Override
+        protected void callCompleted(
+                HttpInvokerClientConfiguration config,
+                Serializable traceId,
+                long clientNanos,
+                String serverTiming) {
+            super.callCompleted(config, traceId, clientNanos, serverTiming);
+
+            this.traceId = traceId;
+            this.clientNanos = clientNanos;
+            this.serverTiming = serverTiming;
+        }
+    }
+}
@@ -0,0 +1,156 @@
+/*
+ * Copyright 2015 yihtserns.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.yihtserns.test.camel.spring.remoting;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import org.apache.camel.AsyncCallback;
+import org.apache.camel.CamelContext;
+import org.apache.camel.Exchange;
+import org.apache.camel.Processor;
+import org.apache.camel.impl.DefaultCamelContext;
+import org.apache.camel.impl.DefaultExchange;
+import org.junit.After;
+import org.junit.Assume;
+import org.junit.Test;
+import static org.hamcrest.Matchers.*;
+import static org.hamcrest.MatcherAssert.assertThat;
+
+/**
+ * @author yihtserns
+ */
+public class VirtualThreadProcessorTest {
+
+    private CamelContext camelContext = new DefaultCamelContext();
+    private VirtualThreadProcessor virtualThreadProcessor;
+
+    @After
+    public void stopProcessor() throws Exception {
+        if (virtualThreadProcessor != null) {
+            virtualThreadProcessor.stop();
+        }
+    }
+
+    @Test
+    public void shouldUseVirtualThreadsWhenRuntimeHasThem() throws Exception {
+        final List<Thread> threads = Collections.synchronizedList(new ArrayList<Thread>());
+        virtualThreadProcessor = new VirtualThreadProcessor(new Processor() {
+
+            @Override
+            public void process(Exchange exchange) throws Exception {
+                threads.add(Thread.currentThread());
+            }
+        });
+        virtualThreadProcessor.start();
+
+        virtualThreadProcessor.process(new DefaultExchange(camelContext));
+
+        Assume.assumeTrue(hasVirtualThreads());
+        assertThat(virtualThreadProcessor.isUsingVirtualThreads(), is(true));
+        assertThat(threads, hasSize(1));
+        assertThat(Thread.class.getMethod("isVirtual").invoke(threads.get(0)), is((Object) true));
+    }
+
+    @Test
+    public void shouldProcessOnCallingThreadWhenRuntimeHasNoVirtualThreads() throws Exception {
+        Assume.assumeFalse(hasVirtualThreads());
+        final List<Thread> threads = new ArrayList<Thread>();
+        virtualThreadProcessor = new VirtualThreadProcessor(new Processor() {
+
+            @Override
+            public void process(Exchange exchange) throws Exception {
+                threads.add(Thread.currentThread());
+            }
+        });
+        virtualThreadProcessor.start();
+
+        boolean doneSync = virtualThreadProcessor.process(new DefaultExchange(camelContext), new AsyncCallback() {
+
+            @Override
+            public void done(boolean doneSync) {
+            }
+        });
+
+        assertThat(virtualThreadProcessor.isUsingVirtualThreads(), is(false));
+        assertThat(doneSync, is(true));
+        assertThat(threads, contains(Thread.currentThread()));
+    }
+
+    @Test
+    public void shouldProcessBlockingInvocationsConcurrently() throws Exception {
+        Assume.assumeTrue(hasVirtualThreads());
+        final int invocationCount = 500;
+        final CountDownLatch allStarted = new CountDownLatch(invocationCount);
+        final CountDownLatch release = new CountDownLatch(1);
+        virtualThreadProcessor = new VirtualThreadProcessor(new Processor() {
+
+            @Override
+            public void process(Exchange exchange) throws Exception {
+                allStarted.countDown();
+                release.await();
+            }
+        });
+        virtualThreadProcessor.start();
+
+        final CountDownLatch done = new CountDownLatch(invocationCount);
+        for (int i = 0; i < invocationCount; i++) {
+            boolean doneSync = virtualThreadProcessor.process(new DefaultExchange(camelContext), new AsyncCallback() {
+
+                @Override
+                public void done(boolean doneSync) {
+                    done.countDown();
+                }
+            });
+            assertThat(doneSync, is(false));
+        }
+
+        assertThat(allStarted.await(5, TimeUnit.SECONDS), is(true));
+        assertThat(virtualThreadProcessor.getInFlightCount(), is(invocationCount));
+
+        release.countDown();
+        assertThat(done.await(5, TimeUnit.SECONDS), is(true));
+        assertThat(virtualThreadProcessor.getInFlightCount(), is(0));
+    }
+
+    @Test
+    public void shouldSetExceptionThrownByProcessorOnExchange() throws Exception {
+        final Exception exception = new Exception("Expected");
+        virtualThreadProcessor = new VirtualThreadProcessor(new Processor() {
+
+            @Override
+            public void process(Exchange exchange) throws Exception {
+                throw exception;
+            }
+        });
+        virtualThreadProcessor.start();
+
+        Exchange exchange = new DefaultExchange(camelContext);
+        virtualThreadProcessor.process(exchange);
+        assertThat(exchange.getException(), is(sameInstance((Object) exception)));
+    }
+
+    private static boolean hasVirtualThreads() {
+        try {
+            Thread.class.getMethod("isVirtual");
+            return true;
+        } catch (NoSuchMethodException ex) {
+            return false;
+        }
+    }
+}